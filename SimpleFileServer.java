@@ -1,15 +1,50 @@
 import com.sun.net.httpserver.*;
 import java.io.*;
 import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.net.URI;
+import java.net.URISyntaxException;
 import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpHeaders;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
 import java.nio.file.*;
-import java.text.DecimalFormat;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.time.Instant;
 import java.time.LocalDateTime;
+import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
 import java.net.URL;
+import java.nio.ByteBuffer;
 import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
 import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.function.Function;
 
 public class SimpleFileServer {
 
@@ -37,7 +72,39 @@ public class SimpleFileServer {
             String defaultCfg = "# 修改监听端口\nport: 36090\n\n" +
                                "# 服务目录\nserve: public\n\n" +
                                "# 网站名称\nsiteName: 我的文件站\n\n" +
-                               "# 背景图片\nbackgroundImage: /Resources/img/background_0.png";
+                               "# 背景图片\nbackgroundImage: /Resources/img/background_0.png\n\n" +
+                               "# 工作线程模型: virtual | fixed | cached\nexecutor: fixed\n\n" +
+                               "# 工作线程数\nworkers: 16\n\n" +
+                               "# 等待队列长度 (队列满时返回 503)\nqueue: 256\n\n" +
+                               "# TCP 连接等待队列长度 (0 为系统默认)\nbacklog: 0\n\n" +
+                               "# 服务引擎: jdk (JDK 内置 HttpServer, 文件经用户态缓冲区拷贝发送) | nio (长连接、零拷贝发送文件)\nengine: jdk\n\n" +
+                               "# NIO 引擎的选择器线程数 (0 为 CPU 核数)\nselectors: 0\n\n" +
+                               "# 长连接空闲超时 / 慢客户端超时 (毫秒, 请求头未收完或响应写不出去)\nidleTimeoutMs: 30000\nslowClientTimeoutMs: 15000\n\n" +
+                               "# 禁用 Nagle 算法 / 套接字发送缓冲区 (KB, 0 为系统默认, 仅 nio 引擎)\ntcpNoDelay: true\nsocketSendBufferKB: 0\n\n" +
+                               "# 目录列表缓存上限 (MB, 0 为禁用)\nlistingCacheMB: 64\n\n" +
+                               "# 目录列表每页条目数\npageSize: 1000\n\n" +
+                               "# 缓存策略: 路径前缀 Cache-Control (可配置多行，最长前缀优先)\ncache: /Resources/ public, max-age=3600\n\n" +
+                               "# gzip 压缩 (存在 xxx.gz 时直接发送预压缩文件)\ncompression: true\n\n" +
+                               "# 压缩的最小/最大字节数\ncompressMinSize: 1024\ncompressMaxSize: 67108864\n\n" +
+                               "# 可压缩的 MIME 类型前缀\ncompressTypes: text/, application/javascript, application/json, application/xml, image/svg+xml\n\n" +
+                               "# 访问日志: stdout 或文件路径\naccessLog: stdout\n\n" +
+                               "# 日志格式: simple | common | combined\naccessLogFormat: simple\n\n" +
+                               "# 日志轮转: 单文件上限 (MB, 0 为不限) / 是否按天轮转\naccessLogMaxMB: 100\naccessLogDaily: false\n\n" +
+                               "# 日志队列长度及队列满时的策略: drop | block\naccessLogQueue: 8192\naccessLogOverflow: drop\n\n" +
+                               "# Prometheus 监控指标接口 (留空为禁用)\nmetricsPath: /metrics\n\n" +
+                               "# 文件名搜索接口 (留空为禁用)\nsearchPath: /search\n\n" +
+                               "# 目录打包下载 (?zip=1) 及压缩级别 (1-9)\nzip: true\nzipLevel: 6\n\n" +
+                               "# 打包时不再压缩的扩展名 (已压缩格式)\nzipStoreTypes: " + Config.DEFAULT_ZIP_STORE_TYPES + "\n\n" +
+                               "# 每个 IP 的请求速率 (次/秒, 0 为不限) 及允许的突发请求数, 超出返回 429\nipRequestRate: 0\nipRequestBurst: 50\n\n" +
+                               "# 每个 IP 的带宽上限及全局带宽上限 (KB/s, 0 为不限)\nipBandwidthKB: 0\ntotalBandwidthKB: 0\n\n" +
+                               "# 每个 IP 同时进行的文件下载数 (0 为不限), 超出返回 429\nipMaxTransfers: 8\n\n" +
+                               "# 热点文件缓存上限 (MB, 0 为禁用) 及可缓存的单文件大小上限 (KB)\nfileCacheMB: 32\nfileCacheMaxKB: 256\n\n" +
+                               "# 后台计算文件 SHA-256 (Digest 响应头、xxx.sha256 地址、目录列表) 及计算线程数\nchecksums: true\nchecksumThreads: 1\n\n" +
+                               "# 校验和缓存文件 (按路径+大小+修改时间记录, 重启后无需重算)\nchecksumDb: .sfs-checksums\n\n" +
+                               "# 边缘模式: 上游源站地址 (如 http://origin:36090, 留空为禁用), 本地没有的文件从上游拉取并缓存\nupstream: \n\n" +
+                               "# 边缘缓存目录及上限 (MB, 超出按 LRU 淘汰)\nedgeCacheDir: edge-cache\nedgeCacheMB: 10240\n\n" +
+                               "# 上游目录列表缓存时间 (秒) / 上游超时 (毫秒)\nedgeListingTtl: 10\nupstreamTimeoutMs: 10000\n\n" +
+                               "# 缓存文件超过该时间 (秒) 后向上游确认是否变化 (If-Modified-Since, 0 为每次确认)\nedgeFileTtl: 60";
             Files.write(cfgPath, defaultCfg.getBytes("UTF-8"));
             System.out.println("[INFO] 已自动生成默认配置文件: " + cfgPath.toAbsolutePath());
         }
@@ -82,17 +149,21 @@ public class SimpleFileServer {
         }
 
         /* 4. 启动 HTTP 服务器 */
-        HttpServer server = HttpServer.create(new InetSocketAddress(cfg.port), 0);
-        server.createContext("/", new LoggingFileHandler(root, cfg));
-        server.start();
+        Engine engine = Engine.create(cfg, new InetSocketAddress(cfg.port), new LoggingFileHandler(root, cfg), WorkerPool.create(cfg));
+        engine.start();
 
         System.out.println("[INFO] 文件服务器已启动");
         System.out.println("[INFO] 访问: http://localhost:" + cfg.port);
         System.out.println("[INFO] 根目录: " + root);
         System.out.println("[INFO] 网站名称: " + cfg.siteName);
+        System.out.println("[INFO] 线程模型: " + cfg.executor + " (workers=" + cfg.workers + ", queue=" + cfg.queue + ")");
+        System.out.println("[INFO] 服务引擎: " + cfg.engine);
         if (cfg.backgroundImage != null) {
             System.out.println("[INFO] 背景图片: " + cfg.backgroundImage);
         }
+        if (cfg.upstream != null && !cfg.upstream.isEmpty()) {
+            System.out.println("[INFO] 边缘模式: 上游 " + cfg.upstream + "，缓存目录 " + cfg.edgeCacheDir);
+        }
     }
 
     /* ========== 配置对象 ========== */
@@ -101,6 +172,52 @@ public class SimpleFileServer {
         String serve;
         String siteName;  // 网站名称配置
         String backgroundImage;  // 背景图片配置
+        String executor = "fixed";  // 工作线程模型: virtual | fixed | cached
+        int workers = Math.max(4, Runtime.getRuntime().availableProcessors() * 2);  // 工作线程数
+        int queue = 256;  // 等待队列长度
+        int backlog = 0;  // TCP 连接等待队列长度 (0 为系统默认)
+        String engine = "jdk";  // 服务引擎: jdk | nio
+        int selectors = 0;  // NIO 引擎的选择器线程数 (0 为 CPU 核数)
+        int idleTimeoutMs = 30000;  // 长连接空闲超时 (毫秒)
+        int slowClientTimeoutMs = 15000;  // 请求头未收完或响应写不出去的超时 (毫秒)
+        boolean tcpNoDelay = true;  // 是否禁用 Nagle 算法
+        int socketSendBufferKB = 0;  // 套接字发送缓冲区 (KB, 0 为系统默认)
+        int listingCacheMB = 64;  // 目录列表缓存上限 (MB, 0 为禁用)
+        int pageSize = 1000;  // 目录列表每页条目数
+        Map<String, String> cachePolicies = new LinkedHashMap<>();  // 路径前缀 -> Cache-Control
+        boolean compression = true;  // 是否启用 gzip 压缩
+        long compressMinSize = 1024;  // 小于该大小的响应不压缩
+        long compressMaxSize = 64L * 1024 * 1024;  // 大于该大小的文件不做实时压缩
+        String compressTypes = "text/, application/javascript, application/json, application/xml, image/svg+xml";
+        String accessLog = "stdout";  // 访问日志输出: stdout 或文件路径
+        String accessLogFormat = "simple";  // 日志格式: simple | common | combined
+        int accessLogMaxMB = 100;  // 单个日志文件上限 (MB, 0 为不按大小轮转)
+        boolean accessLogDaily = false;  // 是否按天轮转
+        int accessLogQueue = 8192;  // 日志队列长度
+        String accessLogOverflow = "drop";  // 队列满时的策略: drop | block
+        String metricsPath = "/metrics";  // 监控指标接口路径 (留空为禁用)
+        String searchPath = "/search";  // 文件名搜索接口路径 (留空为禁用)
+        boolean zip = true;  // 是否允许 ?zip=1 打包下载目录
+        int zipLevel = 6;  // 打包时的 DEFLATE 压缩级别 (1-9)
+        static final String DEFAULT_ZIP_STORE_TYPES = "zip, gz, tgz, bz2, xz, zst, 7z, rar, jar, apk, deb, rpm, "
+                + "jpg, jpeg, png, gif, webp, mp3, mp4, m4a, mkv, webm, avi, mov, flac, ogg, woff2";
+        String zipStoreTypes = DEFAULT_ZIP_STORE_TYPES;  // 打包时直接存储 (不压缩) 的扩展名
+        int ipRequestRate = 0;  // 每个 IP 的请求速率 (次/秒, 0 为不限)
+        int ipRequestBurst = 50;  // 每个 IP 允许的突发请求数
+        int ipBandwidthKB = 0;  // 每个 IP 的带宽上限 (KB/s, 0 为不限)
+        int totalBandwidthKB = 0;  // 全局带宽上限 (KB/s, 0 为不限)
+        int ipMaxTransfers = 8;  // 每个 IP 同时进行的文件下载数 (0 为不限)
+        int fileCacheMB = 32;  // 热点文件缓存上限 (MB, 0 为禁用)
+        int fileCacheMaxKB = 256;  // 可缓存的单个文件大小上限 (KB)
+        boolean checksums = true;  // 是否在后台计算文件的 SHA-256
+        int checksumThreads = 1;  // 计算校验和的线程数
+        String checksumDb = ".sfs-checksums";  // 校验和缓存文件
+        String upstream = "";  // 上游源站地址 (留空为禁用边缘模式)
+        String edgeCacheDir = "edge-cache";  // 边缘缓存目录
+        int edgeCacheMB = 10240;  // 边缘缓存上限 (MB)
+        int edgeListingTtl = 10;  // 上游目录列表在内存中的缓存时间 (秒)
+        int upstreamTimeoutMs = 10000;  // 连接上游及等待上游数据的超时 (毫秒)
+        int edgeFileTtl = 60;  // 缓存文件多久后向上游确认是否变化 (秒)
 
         static Config load(Path p) throws IOException {
             Config c = new Config();
@@ -112,100 +229,4885 @@ public class SimpleFileServer {
                     else if (line.startsWith("serve:")) c.serve = line.substring(6).trim();
                     else if (line.startsWith("siteName:")) c.siteName = line.substring(9).trim(); // 读取网站名称
                     else if (line.startsWith("backgroundImage:")) c.backgroundImage = line.substring(16).trim(); // 读取背景图片
+                    else if (line.startsWith("executor:")) c.executor = line.substring(9).trim().toLowerCase(Locale.ROOT);
+                    else if (line.startsWith("workers:")) c.workers = Integer.parseInt(line.substring(8).trim());
+                    else if (line.startsWith("queue:")) c.queue = Integer.parseInt(line.substring(6).trim());
+                    else if (line.startsWith("backlog:")) c.backlog = Integer.parseInt(line.substring(8).trim());
+                    else if (line.startsWith("engine:")) c.engine = line.substring(7).trim().toLowerCase(Locale.ROOT);
+                    else if (line.startsWith("selectors:")) c.selectors = Integer.parseInt(line.substring(10).trim());
+                    else if (line.startsWith("idleTimeoutMs:")) c.idleTimeoutMs = Integer.parseInt(line.substring(14).trim());
+                    else if (line.startsWith("slowClientTimeoutMs:")) c.slowClientTimeoutMs = Integer.parseInt(line.substring(20).trim());
+                    else if (line.startsWith("tcpNoDelay:")) c.tcpNoDelay = Boolean.parseBoolean(line.substring(11).trim());
+                    else if (line.startsWith("socketSendBufferKB:")) c.socketSendBufferKB = Integer.parseInt(line.substring(19).trim());
+                    else if (line.startsWith("listingCacheMB:")) c.listingCacheMB = Integer.parseInt(line.substring(15).trim());
+                    else if (line.startsWith("pageSize:")) c.pageSize = Integer.parseInt(line.substring(9).trim());
+                    else if (line.startsWith("compression:")) c.compression = Boolean.parseBoolean(line.substring(12).trim());
+                    else if (line.startsWith("compressMinSize:")) c.compressMinSize = Long.parseLong(line.substring(16).trim());
+                    else if (line.startsWith("compressMaxSize:")) c.compressMaxSize = Long.parseLong(line.substring(16).trim());
+                    else if (line.startsWith("compressTypes:")) c.compressTypes = line.substring(14).trim();
+                    else if (line.startsWith("accessLog:")) c.accessLog = line.substring(10).trim();
+                    else if (line.startsWith("accessLogFormat:")) c.accessLogFormat = line.substring(16).trim().toLowerCase(Locale.ROOT);
+                    else if (line.startsWith("accessLogMaxMB:")) c.accessLogMaxMB = Integer.parseInt(line.substring(15).trim());
+                    else if (line.startsWith("accessLogDaily:")) c.accessLogDaily = Boolean.parseBoolean(line.substring(15).trim());
+                    else if (line.startsWith("accessLogQueue:")) c.accessLogQueue = Integer.parseInt(line.substring(15).trim());
+                    else if (line.startsWith("accessLogOverflow:")) c.accessLogOverflow = line.substring(18).trim().toLowerCase(Locale.ROOT);
+                    else if (line.startsWith("metricsPath:")) c.metricsPath = line.substring(12).trim();
+                    else if (line.startsWith("searchPath:")) c.searchPath = line.substring(11).trim();
+                    else if (line.startsWith("zip:")) c.zip = Boolean.parseBoolean(line.substring(4).trim());
+                    else if (line.startsWith("zipLevel:")) c.zipLevel = Integer.parseInt(line.substring(9).trim());
+                    else if (line.startsWith("zipStoreTypes:")) c.zipStoreTypes = line.substring(14).trim();
+                    else if (line.startsWith("ipRequestRate:")) c.ipRequestRate = Integer.parseInt(line.substring(14).trim());
+                    else if (line.startsWith("ipRequestBurst:")) c.ipRequestBurst = Integer.parseInt(line.substring(15).trim());
+                    else if (line.startsWith("ipBandwidthKB:")) c.ipBandwidthKB = Integer.parseInt(line.substring(14).trim());
+                    else if (line.startsWith("totalBandwidthKB:")) c.totalBandwidthKB = Integer.parseInt(line.substring(17).trim());
+                    else if (line.startsWith("ipMaxTransfers:")) c.ipMaxTransfers = Integer.parseInt(line.substring(15).trim());
+                    else if (line.startsWith("fileCacheMB:")) c.fileCacheMB = Integer.parseInt(line.substring(12).trim());
+                    else if (line.startsWith("fileCacheMaxKB:")) c.fileCacheMaxKB = Integer.parseInt(line.substring(15).trim());
+                    else if (line.startsWith("checksums:")) c.checksums = Boolean.parseBoolean(line.substring(10).trim());
+                    else if (line.startsWith("checksumThreads:")) c.checksumThreads = Integer.parseInt(line.substring(16).trim());
+                    else if (line.startsWith("checksumDb:")) c.checksumDb = line.substring(11).trim();
+                    else if (line.startsWith("upstream:")) c.upstream = line.substring(9).trim();
+                    else if (line.startsWith("edgeCacheDir:")) c.edgeCacheDir = line.substring(13).trim();
+                    else if (line.startsWith("edgeCacheMB:")) c.edgeCacheMB = Integer.parseInt(line.substring(12).trim());
+                    else if (line.startsWith("edgeListingTtl:")) c.edgeListingTtl = Integer.parseInt(line.substring(15).trim());
+                    else if (line.startsWith("edgeFileTtl:")) c.edgeFileTtl = Integer.parseInt(line.substring(12).trim());
+                    else if (line.startsWith("upstreamTimeoutMs:")) c.upstreamTimeoutMs = Integer.parseInt(line.substring(18).trim());
+                    else if (line.startsWith("cache:")) { // 格式: cache: <路径前缀> <Cache-Control>
+                        String[] kv = line.substring(6).trim().split("\\s+", 2);
+                        if (kv.length == 2) c.cachePolicies.put(kv[0], kv[1].trim());
+                    }
                 }
             }
             // 设置默认网站名称
             if (c.siteName == null) {
                 c.siteName = "文件站";
             }
+            // 默认缓存静态资源1小时
+            if (c.cachePolicies.isEmpty()) {
+                c.cachePolicies.put("/Resources/", "public, max-age=3600");
+            }
             return c;
         }
     }
 
-    /* ========== 带日志的文件处理器 ========== */
-        static class LoggingFileHandler implements HttpHandler {
-            private final Path root;
-            private final String siteName;  // 存储网站名称
-            private final String backgroundImage;  // 存储背景图片路径
-            private static final DateTimeFormatter LOG_TIME =
-                    DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss", Locale.getDefault());
-            private static final DateTimeFormatter FILE_TIME =
-                    DateTimeFormatter.ofPattern("yyyy.M.d HH:mm:ss", Locale.getDefault());
-            private static final DecimalFormat SIZE_FMT = new DecimalFormat("#,###");
+    /* ========== 工作线程池 ========== */
+    static class WorkerPool {
+        // 标记当前线程正在处理被拒绝的请求，处理器据此直接返回 503
+        private static final ThreadLocal<Boolean> SHEDDING = new ThreadLocal<>();
 
-        LoggingFileHandler(Path root, Config cfg) {
-            this.root = root;
-            this.siteName = cfg.siteName;  // 从配置初始化网站名称
-            this.backgroundImage = cfg.backgroundImage;  // 从配置初始化背景图片路径
+        static boolean isShedding() {
+            return SHEDDING.get() != null;
+        }
+
+        static ExecutorService create(Config cfg) {
+            int workers = Math.max(1, cfg.workers);
+            switch (cfg.executor) {
+                case "virtual":
+                    try {
+                        // 虚拟线程需要 JDK 21+，通过反射调用以兼容旧版本
+                        return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+                    } catch (ReflectiveOperationException e) {
+                        System.err.println("[WARN] 当前 JDK 不支持虚拟线程，改用 cached 线程池");
+                        cfg.executor = "cached";
+                        return cached(workers);
+                    }
+                case "cached":
+                    return cached(workers);
+                case "fixed":
+                    break;
+                default:
+                    System.err.println("[WARN] 未知的 executor 配置: " + cfg.executor + "，改用 fixed 线程池");
+                    cfg.executor = "fixed";
+            }
+            BlockingQueue<Runnable> q = cfg.queue > 0 ? new ArrayBlockingQueue<>(cfg.queue) : new SynchronousQueue<>();
+            return new ThreadPoolExecutor(workers, workers, 60, TimeUnit.SECONDS, q, threads("worker"), WorkerPool::shed);
+        }
+
+        private static ExecutorService cached(int max) {
+            return new ThreadPoolExecutor(0, max, 60, TimeUnit.SECONDS, new SynchronousQueue<>(), threads("worker"), WorkerPool::shed);
+        }
+
+        /* ---------- 过载保护 ---------- */
+        // 线程池饱和时，请求交给单独的线程快速返回 503，避免阻塞分发线程。
+        // 503 队列也满时抛出 RejectedExecutionException，两种引擎都会直接关闭连接，不在分发/选择器线程上写响应
+        private static final ThreadPoolExecutor SHED_POOL = new ThreadPoolExecutor(1, 1, 0, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(1024), threads("shed"), new ThreadPoolExecutor.AbortPolicy());
+
+        private static void shed(Runnable task, ThreadPoolExecutor pool) {
+            if (pool.isShutdown()) return;
+            SHED_POOL.execute(() -> {
+                SHEDDING.set(Boolean.TRUE);
+                try {
+                    task.run();
+                } finally {
+                    SHEDDING.remove();
+                }
+            });
+        }
+
+        private static ThreadFactory threads(String prefix) {
+            AtomicInteger seq = new AtomicInteger();
+            return r -> {
+                Thread t = new Thread(r, "sfs-" + prefix + "-" + seq.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            };
+        }
+    }
+
+    /* ========== 服务引擎 ========== */
+    /** 请求头或响应头，名称不区分大小写 */
+    interface HeaderMap {
+        /** 第一个值，没有该头时返回 null */
+        String getFirst(String name);
+
+        /** 替换为单个值 */
+        void set(String name, String value);
+
+        void add(String name, String value);
+
+        boolean containsKey(String name);
+    }
+
+    /** 单个 HTTP 请求/响应，方法与 HttpExchange 对应，处理器不依赖具体的服务引擎 */
+    interface Exchange {
+        String getRequestMethod();
+        URI getRequestURI();
+        String getProtocol();
+        InetSocketAddress getRemoteAddress();
+        HeaderMap getRequestHeaders();
+        HeaderMap getResponseHeaders();
+
+        /** length 为 0 表示长度未知（分块发送），-1 表示没有响应体 */
+        void sendResponseHeaders(int status, long length) throws IOException;
+
+        OutputStream getResponseBody();
+
+        /** 替换响应输出流，用于在外层包装计数、限速 */
+        void setResponseBody(OutputStream body);
+
+        /** 结束本次交换 */
+        void close();
+    }
+
+    /** 请求处理器 */
+    interface RequestHandler {
+        void handle(Exchange ex) throws IOException;
+
+        /** 引擎接受新连接后调用；HttpServer 不提供连接建立与关闭的通知，JDK 引擎不会调用 */
+        default void connectionOpened() {
+        }
+
+        /** 引擎关闭连接后调用 */
+        default void connectionClosed() {
+        }
+    }
+
+    /** 引擎提供的响应流可直接发送文件区间和缓冲区，不经过用户态拷贝 */
+    interface ZeroCopySink {
+        void sendFile(FileChannel ch, long position, long count) throws IOException;
+
+        void sendBuffer(ByteBuffer buffer) throws IOException;
+    }
+
+    /** 监听端口、解析请求并交给处理器的服务引擎 */
+    interface Engine {
+        static Engine create(Config cfg, InetSocketAddress address, RequestHandler handler, Executor executor) throws IOException {
+            if (cfg.engine.equals("nio")) return new NioEngine(cfg, address, handler, executor);
+            if (!cfg.engine.equals("jdk")) {
+                System.err.println("[WARN] 未知的 engine 配置: " + cfg.engine + "，改用 jdk 引擎");
+                cfg.engine = "jdk";
+            }
+            return new JdkEngine(cfg, address, handler, executor);
+        }
+
+        void start() throws IOException;
+
+        /** 实际监听的端口 */
+        int port();
+
+        void stop();
+    }
+
+    /* ---------- JDK 内置引擎 ---------- */
+    /** 基于 com.sun.net.httpserver.HttpServer，连接管理与响应写出由 JDK 负责 */
+    static class JdkEngine implements Engine {
+        private final HttpServer server;
+
+        JdkEngine(Config cfg, InetSocketAddress address, RequestHandler handler, Executor executor) throws IOException {
+            // 这两个属性在 HttpServer 首次创建时读取
+            System.setProperty("sun.net.httpserver.nodelay", String.valueOf(cfg.tcpNoDelay));
+            System.setProperty("sun.net.httpserver.idleInterval", String.valueOf(Math.max(1, cfg.idleTimeoutMs / 1000)));
+            this.server = HttpServer.create(address, cfg.backlog);
+            server.createContext("/", ex -> handler.handle(new JdkExchange(ex)));
+            server.setExecutor(executor);
         }
 
         @Override
-        public void handle(HttpExchange ex) throws IOException {
-            long start = System.currentTimeMillis();
-            String clientIp = ex.getRemoteAddress().getAddress().getHostAddress();
-            String uriPath = ex.getRequestURI().getPath();
+        public void start() {
+            server.start();
+        }
 
-            /* 实际业务处理 */
+        @Override
+        public int port() {
+            return server.getAddress().getPort();
+        }
+
+        @Override
+        public void stop() {
+            server.stop(0);
+        }
+
+        private static final class JdkExchange implements Exchange {
+            private final HttpExchange ex;
+            private final JdkHeaders requestHeaders;
+            private final JdkHeaders responseHeaders;
+
+            JdkExchange(HttpExchange ex) {
+                this.ex = ex;
+                this.requestHeaders = new JdkHeaders(ex.getRequestHeaders());
+                this.responseHeaders = new JdkHeaders(ex.getResponseHeaders());
+            }
+
+            @Override public String getRequestMethod() { return ex.getRequestMethod(); }
+            @Override public URI getRequestURI() { return ex.getRequestURI(); }
+            @Override public String getProtocol() { return ex.getProtocol(); }
+            @Override public InetSocketAddress getRemoteAddress() { return ex.getRemoteAddress(); }
+            @Override public HeaderMap getRequestHeaders() { return requestHeaders; }
+            @Override public HeaderMap getResponseHeaders() { return responseHeaders; }
+            @Override public OutputStream getResponseBody() { return ex.getResponseBody(); }
+            @Override public void setResponseBody(OutputStream body) { ex.setStreams(null, body); }
+            @Override public void close() { ex.close(); }
+
+            @Override
+            public void sendResponseHeaders(int status, long length) throws IOException {
+                ex.sendResponseHeaders(status, length);
+            }
+        }
+
+        /** 直接读写 HttpExchange 的 Headers */
+        private static final class JdkHeaders implements HeaderMap {
+            private final Headers headers;
+
+            JdkHeaders(Headers headers) {
+                this.headers = headers;
+            }
+
+            @Override public String getFirst(String name) { return headers.getFirst(name); }
+            @Override public void set(String name, String value) { headers.set(name, value); }
+            @Override public void add(String name, String value) { headers.add(name, value); }
+            @Override public boolean containsKey(String name) { return headers.containsKey(name); }
+        }
+    }
+
+    /* ---------- NIO 引擎 ---------- */
+    /**
+     * 一个接收线程把连接轮流分给 N 个选择器线程。选择器线程负责读取、解析请求头并按顺序写出响应，
+     * 文件区间以非阻塞的 FileChannel.transferTo 直接写到套接字；请求在工作线程池中处理，
+     * 响应体先进入连接的发送队列，积压过多时工作线程暂停写入。
+     * 支持 HTTP/1.1 长连接与流水线请求，空闲连接和写不动的慢客户端按超时关闭。
+     */
+    static class NioEngine implements Engine {
+        private static final int MAX_HEAD = 64 * 1024;  // 请求头上限
+        private static final int BUFFER = 32 * 1024;  // 响应体缓冲块大小
+        private static final long HIGH_WATER = 512 * 1024;  // 排队字节超过该值时工作线程暂停写入
+        private static final long LOW_WATER = 128 * 1024;  // 排队字节降到该值以下时恢复
+        private static final long WAIT_NANOS = TimeUnit.MILLISECONDS.toNanos(100);  // 工作线程单次等待上限
+        private static final long SWEEP_NANOS = TimeUnit.SECONDS.toNanos(1);  // 超时检查间隔
+        private static final Object END_KEEP_ALIVE = new Object();  // 响应结束，连接继续使用
+        private static final Object END_CLOSE = new Object();  // 响应结束后关闭连接
+        private static final byte[] CRLF = {'\r', '\n'};
+        private static final byte[] LAST_CHUNK = {'0', '\r', '\n', '\r', '\n'};
+
+        private final InetSocketAddress address;
+        private final RequestHandler handler;
+        private final Executor executor;
+        private final int backlog;
+        private final long idleNanos;
+        private final long slowNanos;
+        private final boolean noDelay;
+        private final int sendBuffer;
+        private final Loop[] loops;
+        private ServerSocketChannel server;
+        private volatile boolean running;
+
+        NioEngine(Config cfg, InetSocketAddress address, RequestHandler handler, Executor executor) throws IOException {
+            this.address = address;
+            this.handler = handler;
+            this.executor = executor;
+            this.backlog = cfg.backlog;
+            this.idleNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1000, cfg.idleTimeoutMs));
+            this.slowNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1000, cfg.slowClientTimeoutMs));
+            this.noDelay = cfg.tcpNoDelay;
+            this.sendBuffer = Math.max(0, cfg.socketSendBufferKB) * 1024;
+            int n = cfg.selectors > 0 ? cfg.selectors : Runtime.getRuntime().availableProcessors();
+            this.loops = new Loop[n];
+            for (int i = 0; i < n; i++) loops[i] = new Loop();
+        }
+
+        @Override
+        public void start() throws IOException {
+            server = ServerSocketChannel.open();
+            server.bind(address, backlog);
+            running = true;
+            for (int i = 0; i < loops.length; i++) {
+                Thread t = new Thread(loops[i], "sfs-selector-" + (i + 1));
+                t.setDaemon(true);
+                t.start();
+            }
+            // 与 HttpServer 的分发线程一样，接收线程不是守护线程，进程随之保持运行
+            new Thread(this::accept, "sfs-acceptor").start();
+        }
+
+        @Override
+        public int port() {
+            return ((InetSocketAddress) server.socket().getLocalSocketAddress()).getPort();
+        }
+
+        @Override
+        public void stop() {
+            running = false;
             try {
-                // 处理静态资源请求
-                if (uriPath.startsWith("/Resources/")) {
-                    Path resourcePath = Paths.get(".").resolve(uriPath.substring(1)).normalize();
-                    if (Files.isRegularFile(resourcePath)) {
-                        serveFile(ex, resourcePath);
-                        log(clientIp, uriPath, 200, System.currentTimeMillis() - start);
+                server.close();
+            } catch (IOException ignored) {
+            }
+            for (Loop loop : loops) loop.selector.wakeup();
+        }
+
+        private void accept() {
+            int next = 0;
+            while (running) {
+                try {
+                    SocketChannel ch = server.accept();
+                    ch.configureBlocking(false);
+                    ch.setOption(StandardSocketOptions.TCP_NODELAY, noDelay);
+                    if (sendBuffer > 0) ch.setOption(StandardSocketOptions.SO_SNDBUF, sendBuffer);
+                    loops[next].register(ch);
+                    next = (next + 1) % loops.length;
+                } catch (ClosedChannelException e) {
+                    break;
+                } catch (IOException e) {
+                    if (!running) break;
+                    // 文件描述符耗尽等情况下稍作等待，避免空转
+                    System.err.println("[WARN] 接受连接失败: " + e.getMessage());
+                    LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(10));
+                }
+            }
+        }
+
+        /* ---------- 选择器线程 ---------- */
+        private final class Loop implements Runnable {
+            final Selector selector;
+            private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+            private final AtomicBoolean woken = new AtomicBoolean();
+            private final ByteBuffer[] gather = new ByteBuffer[16];
+
+            Loop() throws IOException {
+                this.selector = Selector.open();
+            }
+
+            /** 在选择器线程中执行任务 */
+            void execute(Runnable task) {
+                tasks.add(task);
+                if (woken.compareAndSet(false, true)) selector.wakeup();
+            }
+
+            void register(SocketChannel ch) {
+                execute(() -> {
+                    try {
+                        Connection c = new Connection(this, ch);
+                        c.key = ch.register(selector, SelectionKey.OP_READ, c);
+                        handler.connectionOpened();
+                    } catch (IOException e) {
+                        try {
+                            ch.close();
+                        } catch (IOException ignored) {
+                        }
+                    }
+                });
+            }
+
+            @Override
+            public void run() {
+                long nextSweep = System.nanoTime() + SWEEP_NANOS;
+                while (running) {
+                    try {
+                        selector.select(1000);
+                    } catch (IOException e) {
+                        System.err.println("[WARN] 选择器异常: " + e.getMessage());
+                        continue;
+                    }
+                    woken.set(false);
+                    for (Runnable task; (task = tasks.poll()) != null; ) task.run();
+                    Set<SelectionKey> selected = selector.selectedKeys();
+                    for (SelectionKey k : selected) ((Connection) k.attachment()).ready(k);
+                    selected.clear();
+                    long now = System.nanoTime();
+                    if (now - nextSweep >= 0) {
+                        for (SelectionKey k : selector.keys()) ((Connection) k.attachment()).checkTimeout(now);
+                        nextSweep = now + SWEEP_NANOS;
+                    }
+                }
+                for (SelectionKey k : selector.keys()) ((Connection) k.attachment()).close();
+                try {
+                    selector.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+
+        /* ---------- 连接 ---------- */
+        /** 除标注的字段外，连接状态只在所属的选择器线程中访问 */
+        private final class Connection {
+            final Loop loop;
+            final SocketChannel ch;
+            final InetSocketAddress remote;
+            SelectionKey key;
+            private ByteBuffer in = ByteBuffer.allocate(4096);  // 已读入、未解析的请求数据（写模式）
+            private long discard;  // 尚待丢弃的请求体字节
+            private boolean busy;  // 请求处理中或响应尚未写完
+            private long idleSince = System.nanoTime();  // 开始空闲的时间
+            private long headSince;  // 开始收到不完整请求头的时间，0 为无
+            private long stalledSince;  // 写出开始停滞的时间，0 为无
+            // 以下字段由工作线程与选择器线程共享
+            final ConcurrentLinkedQueue<Object> out = new ConcurrentLinkedQueue<>();  // ByteBuffer | FileRegion | END_*
+            final AtomicLong pending = new AtomicLong();  // 排队中的缓冲字节
+            private final AtomicBoolean flushScheduled = new AtomicBoolean();
+            volatile boolean closed;
+            volatile Thread waiter;  // 因积压而等待的工作线程
+
+            Connection(Loop loop, SocketChannel ch) throws IOException {
+                this.loop = loop;
+                this.ch = ch;
+                this.remote = (InetSocketAddress) ch.getRemoteAddress();
+            }
+
+            void ready(SelectionKey k) {
+                try {
+                    if (k.isReadable()) read();
+                    if (k.isValid() && k.isWritable()) flush();
+                } catch (IOException | RuntimeException e) {
+                    close();
+                }
+            }
+
+            private void read() throws IOException {
+                if (!in.hasRemaining()) {
+                    if (in.capacity() >= MAX_HEAD) {
+                        reject("431 Request Header Fields Too Large");
                         return;
+                    }
+                    ByteBuffer grown = ByteBuffer.allocate(Math.min(MAX_HEAD, in.capacity() * 2));
+                    in.flip();
+                    in = grown.put(in);
+                }
+                int n = ch.read(in);
+                if (n < 0) {
+                    close();
+                } else if (n > 0) {
+                    parse();
+                }
+            }
+
+            /** 解析缓冲区中的下一个请求，完整时交给工作线程 */
+            private void parse() throws IOException {
+                in.flip();
+                skipBody();
+                int end = headEnd(in);
+                if (end < 0) {
+                    in.compact();
+                    if (in.position() == 0) headSince = 0;
+                    else if (headSince == 0) headSince = System.nanoTime();
+                    return;
+                }
+                headSince = 0;
+                NioExchange ex;
+                try {
+                    ex = parseHead(end);
+                } catch (IllegalArgumentException | URISyntaxException e) {
+                    in.clear();
+                    reject("400 Bad Request");
+                    return;
+                }
+                discard = ex.requestLength;
+                skipBody();
+                in.compact();
+                busy = true;
+                key.interestOps(0);
+                try {
+                    executor.execute(() -> run(ex));
+                } catch (RejectedExecutionException e) {
+                    close();
+                }
+            }
+
+            private void skipBody() {
+                if (discard <= 0) return;
+                int n = (int) Math.min(discard, in.remaining());
+                in.position(in.position() + n);
+                discard -= n;
+            }
+
+            private NioExchange parseHead(int end) throws URISyntaxException {
+                String head = new String(in.array(), in.position(), end - in.position(), StandardCharsets.ISO_8859_1);
+                in.position(end);
+                String[] lines = head.split("\r\n");
+                int i = 0;
+                while (i < lines.length && lines[i].isEmpty()) i++;  // 忽略请求前多余的空行
+                if (i == lines.length) throw new IllegalArgumentException("空请求");
+                String[] request = lines[i].split(" ");
+                if (request.length != 3 || !request[2].startsWith("HTTP/1.")) {
+                    throw new IllegalArgumentException(lines[i]);
+                }
+                NioExchange ex = new NioExchange(this, request[0], new URI(request[1]), request[2]);
+                for (i++; i < lines.length; i++) {
+                    int colon = lines[i].indexOf(':');
+                    if (colon <= 0) throw new IllegalArgumentException(lines[i]);
+                    ex.requestHeaders.add(lines[i].substring(0, colon).trim(), lines[i].substring(colon + 1).trim());
+                }
+                ex.init();
+                return ex;
+            }
+
+            /** 请求头格式错误时直接回复并关闭连接 */
+            private void reject(String status) throws IOException {
+                busy = true;
+                key.interestOps(0);
+                out.add(ByteBuffer.wrap(("HTTP/1.1 " + status + "\r\nContent-Length: 0\r\nConnection: close\r\n\r\n")
+                        .getBytes(StandardCharsets.ISO_8859_1)));
+                out.add(END_CLOSE);
+                flush();
+            }
+
+            /** 在工作线程中处理请求，处理器未完成的响应由这里补全 */
+            private void run(NioExchange ex) {
+                try {
+                    handler.handle(ex);
+                } catch (Throwable t) {
+                    ex.abort();
+                } finally {
+                    ex.complete();
+                }
+            }
+
+            /* ---------- 写出 ---------- */
+            /** 工作线程把响应片段放入发送队列，积压过多时等待选择器线程写出 */
+            void enqueue(Object segment, long bytes) throws IOException {
+                if (closed) throw new IOException("连接已关闭");
+                if (bytes > 0) pending.addAndGet(bytes);
+                out.add(segment);
+                if (flushScheduled.compareAndSet(false, true)) loop.execute(this::scheduledFlush);
+                if (pending.get() > HIGH_WATER) awaitDrain();
+            }
+
+            private void awaitDrain() throws IOException {
+                waiter = Thread.currentThread();
+                try {
+                    while (pending.get() > LOW_WATER) {
+                        if (closed) throw new IOException("连接已关闭");
+                        LockSupport.parkNanos(this, WAIT_NANOS);
+                    }
+                } finally {
+                    waiter = null;
+                }
+            }
+
+            private void scheduledFlush() {
+                flushScheduled.set(false);
+                if (closed) return;
+                try {
+                    flush();
+                } catch (IOException | RuntimeException e) {
+                    close();
+                }
+            }
+
+            /** 按顺序写出发送队列，套接字写满时等待 OP_WRITE */
+            private void flush() throws IOException {
+                boolean blocked = false;
+                long written = 0;
+                for (Object segment; (segment = out.peek()) != null; ) {
+                    if (segment instanceof ByteBuffer) {
+                        ByteBuffer[] gather = loop.gather;
+                        int k = 0;
+                        for (Object o : out) {
+                            if (!(o instanceof ByteBuffer) || k == gather.length) break;
+                            gather[k++] = (ByteBuffer) o;
+                        }
+                        long n = ch.write(gather, 0, k);
+                        for (int i = 0; i < k && !gather[i].hasRemaining(); i++) out.poll();
+                        blocked = gather[k - 1].hasRemaining();
+                        Arrays.fill(gather, 0, k, null);
+                        if (n > 0) {
+                            written += n;
+                            drained(n);
+                        }
+                        if (blocked) break;
+                    } else if (segment instanceof FileRegion) {
+                        FileRegion region = (FileRegion) segment;
+                        long n;
+                        try {
+                            n = region.transferTo(ch);
+                        } catch (IOException e) {
+                            region.finish(e);
+                            throw e;
+                        }
+                        written += n;
+                        if (region.count > 0) {
+                            blocked = true;
+                            break;
+                        }
+                        out.poll();
+                        region.finish(null);
                     } else {
-                        serve404(ex);
-                        log(clientIp, uriPath, 404, System.currentTimeMillis() - start);
+                        out.poll();
+                        if (!endResponse(segment == END_KEEP_ALIVE)) return;
+                    }
+                }
+                // 慢客户端：从最后一次写出进展开始计时
+                if (!blocked) stalledSince = 0;
+                else if (written > 0 || stalledSince == 0) stalledSince = System.nanoTime();
+                if (!closed) {
+                    int ops = key.interestOps();
+                    key.interestOps(blocked ? ops | SelectionKey.OP_WRITE : ops & ~SelectionKey.OP_WRITE);
+                }
+            }
+
+            private void drained(long n) {
+                if (pending.addAndGet(-n) <= LOW_WATER) {
+                    Thread t = waiter;
+                    if (t != null) LockSupport.unpark(t);
+                }
+            }
+
+            /** 响应写完：长连接恢复读取并处理已缓冲的流水线请求，否则关闭连接 */
+            private boolean endResponse(boolean keepAlive) throws IOException {
+                if (!keepAlive || !running) {
+                    close();
+                    return false;
+                }
+                busy = false;
+                idleSince = System.nanoTime();
+                key.interestOps(SelectionKey.OP_READ);
+                if (in.position() > 0) parse();
+                return true;
+            }
+
+            void checkTimeout(long now) {
+                if (busy) {
+                    if (stalledSince != 0 && now - stalledSince > slowNanos) close();
+                } else if (headSince != 0) {
+                    if (now - headSince > slowNanos) close();
+                } else if (now - idleSince > idleNanos) {
+                    close();
+                }
+            }
+
+            /** 在工作线程中中止连接 */
+            void abort() {
+                loop.execute(this::close);
+            }
+
+            void close() {
+                if (closed) return;
+                closed = true;
+                if (key != null) {
+                    key.cancel();
+                    handler.connectionClosed();  // 只有注册成功的连接计入
+                }
+                try {
+                    ch.close();
+                } catch (IOException ignored) {
+                }
+                IOException error = new IOException("连接已关闭");
+                for (Object segment; (segment = out.poll()) != null; ) {
+                    if (segment instanceof FileRegion) ((FileRegion) segment).finish(error);
+                }
+                Thread t = waiter;
+                if (t != null) LockSupport.unpark(t);
+            }
+        }
+
+        /** 查找请求头结束位置（空行之后），未找到返回 -1 */
+        private static int headEnd(ByteBuffer buf) {
+            byte[] a = buf.array();
+            for (int i = buf.position() + 3, end = buf.limit(); i < end; i++) {
+                if (a[i] == '\n' && a[i - 1] == '\r' && a[i - 2] == '\n' && a[i - 3] == '\r') return i + 1;
+            }
+            return -1;
+        }
+
+        /** 待写出的文件区间，由选择器线程写出，提交的工作线程等待完成 */
+        private static final class FileRegion {
+            private final FileChannel file;
+            private long position;
+            long count;
+            private final Thread owner = Thread.currentThread();
+            private volatile boolean done;
+            private volatile IOException error;
+
+            FileRegion(FileChannel file, long position, long count) {
+                this.file = file;
+                this.position = position;
+                this.count = count;
+            }
+
+            long transferTo(SocketChannel ch) throws IOException {
+                long n = file.transferTo(position, count, ch);
+                if (n == 0 && position >= file.size()) throw new EOFException("文件在传输过程中被截断");
+                position += n;
+                count -= n;
+                return n;
+            }
+
+            void finish(IOException e) {
+                error = e;
+                done = true;
+                LockSupport.unpark(owner);
+            }
+
+            void await(Connection conn) throws IOException {
+                while (!done) {
+                    if (conn.closed) throw new IOException("连接已关闭");
+                    LockSupport.parkNanos(this, WAIT_NANOS);
+                }
+                if (error != null) throw error;
+            }
+        }
+
+        /* ---------- 请求交换 ---------- */
+        /** 按首次出现的写法保存名称，查找时不区分大小写 */
+        private static final class HeaderList implements HeaderMap {
+            static final class Field {
+                final String name;
+                final List<String> values = new ArrayList<>(1);
+
+                Field(String name) {
+                    this.name = name;
+                }
+            }
+
+            final Map<String, Field> fields = new LinkedHashMap<>();  // 小写名称 -> 字段
+
+            @Override
+            public String getFirst(String name) {
+                Field f = fields.get(name.toLowerCase(Locale.ROOT));
+                return f == null || f.values.isEmpty() ? null : f.values.get(0);
+            }
+
+            @Override
+            public void set(String name, String value) {
+                Field f = fields.computeIfAbsent(name.toLowerCase(Locale.ROOT), k -> new Field(name));
+                f.values.clear();
+                f.values.add(value);
+            }
+
+            @Override
+            public void add(String name, String value) {
+                fields.computeIfAbsent(name.toLowerCase(Locale.ROOT), k -> new Field(name)).values.add(value);
+            }
+
+            @Override
+            public boolean containsKey(String name) {
+                return fields.containsKey(name.toLowerCase(Locale.ROOT));
+            }
+        }
+
+        private final class NioExchange implements Exchange {
+            private final Connection conn;
+            private final String method;
+            private final URI uri;
+            private final String protocol;
+            final HeaderList requestHeaders = new HeaderList();
+            private final HeaderList responseHeaders = new HeaderList();
+            private final Body raw = new Body();
+            private OutputStream body = raw;
+            long requestLength;  // 请求体长度，读取后丢弃
+            boolean keepAlive;
+
+            NioExchange(Connection conn, String method, URI uri, String protocol) {
+                this.conn = conn;
+                this.method = method;
+                this.uri = uri;
+                this.protocol = protocol;
+            }
+
+            /** 请求头解析完后确定连接是否复用 */
+            void init() {
+                String connection = requestHeaders.getFirst("Connection");
+                connection = connection == null ? "" : connection.toLowerCase(Locale.ROOT);
+                keepAlive = protocol.equals("HTTP/1.1") ? !connection.contains("close") : connection.contains("keep-alive");
+                String length = requestHeaders.getFirst("Content-Length");
+                if (length != null) {
+                    try {
+                        requestLength = Long.parseLong(length.trim());
+                    } catch (NumberFormatException e) {
+                        throw new IllegalArgumentException("Content-Length: " + length);
+                    }
+                    if (requestLength < 0) throw new IllegalArgumentException("Content-Length: " + length);
+                }
+                // 不解析分块请求体，响应后关闭连接
+                if (requestHeaders.containsKey("Transfer-Encoding")) keepAlive = false;
+            }
+
+            @Override public String getRequestMethod() { return method; }
+            @Override public URI getRequestURI() { return uri; }
+            @Override public String getProtocol() { return protocol; }
+            @Override public InetSocketAddress getRemoteAddress() { return conn.remote; }
+            @Override public HeaderMap getRequestHeaders() { return requestHeaders; }
+            @Override public HeaderMap getResponseHeaders() { return responseHeaders; }
+            @Override public OutputStream getResponseBody() { return body; }
+            @Override public void setResponseBody(OutputStream body) { this.body = body; }
+
+            @Override
+            public void close() {
+                try {
+                    if (raw.started) raw.close();
+                } catch (IOException e) {
+                    conn.abort();
+                }
+            }
+
+            @Override
+            public void sendResponseHeaders(int status, long length) throws IOException {
+                if (raw.started) throw new IOException("响应头已发送");
+                boolean bodiless = status == 304 || status == 204 || status < 200;
+                boolean discard = bodiless || method.equals("HEAD");
+                boolean chunked = false;
+                long fixed = -1;
+                StringBuilder sb = new StringBuilder(256).append("HTTP/1.1 ").append(status).append(' ')
+                        .append(reason(status)).append("\r\nDate: ").append(httpDate()).append("\r\n");
+                if (bodiless) {
+                    // 没有响应体，也不带长度
+                } else if (length > 0) {
+                    fixed = length;
+                    sb.append("Content-Length: ").append(length).append("\r\n");
+                } else if (length < 0) {
+                    fixed = 0;
+                    sb.append("Content-Length: 0\r\n");
+                } else if (!discard && protocol.equals("HTTP/1.1")) {
+                    chunked = true;
+                    sb.append("Transfer-Encoding: chunked\r\n");
+                } else if (!discard) {
+                    keepAlive = false;  // HTTP/1.0 客户端只能以关闭连接标志响应结束
+                }
+                if (!keepAlive) sb.append("Connection: close\r\n");
+                else if (!protocol.equals("HTTP/1.1")) sb.append("Connection: keep-alive\r\n");
+                for (HeaderList.Field f : responseHeaders.fields.values()) {
+                    for (String v : f.values) sb.append(f.name).append(": ").append(v).append("\r\n");
+                }
+                sb.append("\r\n");
+                raw.begin(sb.toString().getBytes(StandardCharsets.ISO_8859_1), discard, discard ? -1 : fixed, chunked);
+                if (length < 0 || bodiless) raw.close();
+            }
+
+            /** 处理器异常：响应不完整，结束后关闭连接 */
+            void abort() {
+                keepAlive = false;
+                if (raw.started) raw.aborted = true;
+            }
+
+            /** 处理器返回后补全响应：未发送响应头时返回 500，未关闭的响应体在这里关闭 */
+            void complete() {
+                try {
+                    if (!raw.started) {
+                        keepAlive = false;
+                        sendResponseHeaders(500, -1);
+                    }
+                    raw.close();
+                } catch (IOException | RuntimeException e) {
+                    conn.abort();
+                }
+            }
+
+            /** 缓冲响应体：定长或分块写入发送队列，文件区间和只读缓冲区直接排队 */
+            private final class Body extends OutputStream implements ZeroCopySink {
+                boolean started;
+                boolean aborted;
+                private boolean closed;
+                private boolean discard;  // HEAD、304 等不发送响应体
+                private boolean chunked;
+                private long remaining = -1;  // 定长响应尚可写入的字节数，-1 为不限
+                private ByteBuffer buf;
+                private int dataStart;  // buf 中响应体数据的起始位置（之前为响应头）
+
+                void begin(byte[] head, boolean discard, long fixed, boolean chunked) {
+                    this.started = true;
+                    this.discard = discard;
+                    this.remaining = fixed;
+                    this.chunked = chunked;
+                    this.buf = ByteBuffer.allocate(Math.max(BUFFER, head.length + 1024)).put(head);
+                    this.dataStart = head.length;
+                }
+
+                /** 检查并记录即将写入的字节数，不需要发送时返回 false */
+                private boolean reserve(long n) throws IOException {
+                    if (!started) throw new IOException("响应头尚未发送");
+                    if (closed) throw new IOException("响应已结束");
+                    if (discard) return false;
+                    if (remaining >= 0) {
+                        if (n > remaining) throw new IOException("响应体超出声明的长度");
+                        remaining -= n;
+                    }
+                    return true;
+                }
+
+                @Override
+                public void write(int b) throws IOException {
+                    if (!reserve(1)) return;
+                    buf.put((byte) b);
+                    if (!buf.hasRemaining()) flushBuffer();
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    if (!reserve(len)) return;
+                    while (len > 0) {
+                        int n = Math.min(len, buf.remaining());
+                        buf.put(b, off, n);
+                        off += n;
+                        len -= n;
+                        if (!buf.hasRemaining()) flushBuffer();
+                    }
+                }
+
+                @Override
+                public void sendBuffer(ByteBuffer src) throws IOException {
+                    int n = src.remaining();
+                    if (!reserve(n)) return;
+                    if (!chunked && n > buf.remaining()) {
+                        flushBuffer();
+                        conn.enqueue(src.slice(), n);
+                        src.position(src.limit());
                         return;
                     }
+                    while (src.hasRemaining()) {
+                        int k = Math.min(src.remaining(), buf.remaining());
+                        buf.put(src.slice().limit(k));
+                        src.position(src.position() + k);
+                        if (!buf.hasRemaining()) flushBuffer();
+                    }
                 }
-                
-                Path target = root.resolve("." + uriPath).normalize();
-                if (!target.startsWith(root)) {   // 防穿越
-                    serve404(ex);
-                    log(clientIp, uriPath, 404, System.currentTimeMillis() - start);
-                    return;
+
+                @Override
+                public void sendFile(FileChannel ch, long position, long count) throws IOException {
+                    if (count <= 0 || !reserve(count)) return;
+                    if (chunked) {
+                        // 分块编码需要加帧，退回到缓冲写出
+                        while (count > 0) {
+                            if (!buf.hasRemaining()) flushBuffer();
+                            ByteBuffer dst = buf.slice().limit((int) Math.min(buf.remaining(), count));
+                            int n = ch.read(dst, position);
+                            if (n < 0) throw new EOFException("文件在传输过程中被截断");
+                            buf.position(buf.position() + n);
+                            position += n;
+                            count -= n;
+                        }
+                        return;
+                    }
+                    flushBuffer();
+                    FileRegion region = new FileRegion(ch, position, count);
+                    conn.enqueue(region, 0);
+                    region.await(conn);
+                }
+
+                @Override
+                public void flush() throws IOException {
+                    if (started && !closed) flushBuffer();
+                }
+
+                @Override
+                public void close() throws IOException {
+                    if (closed || !started) return;
+                    closed = true;
+                    if (aborted) {
+                        // 不完整的响应不写结尾，直接关闭连接
+                        conn.abort();
+                        return;
+                    }
+                    flushBuffer();
+                    if (chunked) conn.enqueue(ByteBuffer.wrap(LAST_CHUNK), LAST_CHUNK.length);
+                    if (remaining > 0) keepAlive = false;  // 响应体不足声明的长度
+                    conn.enqueue(keepAlive ? END_KEEP_ALIVE : END_CLOSE, 0);
+                }
+
+                private void flushBuffer() throws IOException {
+                    int end = buf.position();
+                    if (end == 0) return;
+                    int len = end - dataStart;
+                    if (!chunked) {
+                        buf.flip();
+                        conn.enqueue(buf, end);
+                    } else {
+                        byte[] a = buf.array();
+                        if (dataStart > 0) conn.enqueue(ByteBuffer.wrap(a, 0, dataStart), dataStart);
+                        if (len > 0) {
+                            byte[] size = (Integer.toHexString(len) + "\r\n").getBytes(StandardCharsets.ISO_8859_1);
+                            conn.enqueue(ByteBuffer.wrap(size), size.length);
+                            conn.enqueue(ByteBuffer.wrap(a, dataStart, len), len);
+                            conn.enqueue(ByteBuffer.wrap(CRLF), CRLF.length);
+                        }
+                    }
+                    buf = ByteBuffer.allocate(BUFFER);
+                    dataStart = 0;
                 }
+            }
+        }
+
+        private static volatile String date;
+        private static volatile long dateSecond;
+
+        /** Date 响应头，每秒格式化一次 */
+        private static String httpDate() {
+            long second = System.currentTimeMillis() / 1000;
+            String d = date;
+            if (d == null || second != dateSecond) {
+                d = LoggingFileHandler.formatHttpDate(second * 1000);
+                date = d;
+                dateSecond = second;
+            }
+            return d;
+        }
+
+        private static String reason(int status) {
+            switch (status) {
+                case 200: return "OK";
+                case 204: return "No Content";
+                case 206: return "Partial Content";
+                case 301: return "Moved Permanently";
+                case 302: return "Found";
+                case 304: return "Not Modified";
+                case 400: return "Bad Request";
+                case 403: return "Forbidden";
+                case 404: return "Not Found";
+                case 405: return "Method Not Allowed";
+                case 416: return "Range Not Satisfiable";
+                case 429: return "Too Many Requests";
+                case 500: return "Internal Server Error";
+                case 502: return "Bad Gateway";
+                case 503: return "Service Unavailable";
+                case 504: return "Gateway Timeout";
+                default: return "";
+            }
+        }
+    }
+
+    /* ========== 流量控制 ========== */
+    /**
+     * 按 IP 和全局的令牌桶限速，以及每个 IP 同时进行的大文件传输数限制。
+     * 令牌桶采用 GCRA 形式，每个桶只有一个 AtomicLong，用 CAS 更新，不加锁。
+     * 每个响应开头的一小段字节照常记账，但可以在突发量之外再透支至多一个突发量而不等待，
+     * 大文件下载占满带宽时，目录列表和小文件仍能及时返回；把下载拆成许多小请求则很快用完透支额度，同样被限速。
+     * 大文件之间按预约顺序轮流发送，各自分到大致相等的带宽。
+     */
+    static class Qos {
+        static final long PRIORITY_BYTES = 256 * 1024;  // 每个响应优先放行的字节数
+        private static final int SLICE = 16 * 1024;  // 限速时每次写出的最大字节数
+        private static final long IDLE_NANOS = TimeUnit.MINUTES.toNanos(5);  // 闲置多久后清理客户端状态
+
+        /** 令牌桶：tat 为按当前预约全部发完的时刻，超出 now + burst 的部分就是需要等待的时间 */
+        static final class Bucket {
+            private final double nanosPerUnit;
+            private final long burstNanos;
+            private final AtomicLong tat = new AtomicLong(System.nanoTime());
+
+            Bucket(long perSecond, long burst) {
+                this.nanosPerUnit = 1e9 / perSecond;
+                this.burstNanos = (long) (Math.max(1, burst) * nanosPerUnit);
+            }
+
+            /** 透支是否仍在优先段允许的范围内（超出突发量的部分不超过一个突发量） */
+            boolean allowsPriority(long wait) {
+                return wait <= burstNanos;
+            }
+
+            /** 预约 n 个令牌（可透支），返回需要等待的纳秒数 */
+            long reserve(long n) {
+                long cost = (long) (n * nanosPerUnit);
+                while (true) {
+                    long now = System.nanoTime();
+                    long cur = tat.get();
+                    long next = Math.max(cur, now) + cost;
+                    if (tat.compareAndSet(cur, next)) return Math.max(0, next - now - burstNanos);
+                }
+            }
+
+            /** 令牌足够时扣减并返回 0；不足时不扣减，返回还需等待的纳秒数 */
+            long tryAcquire(long n) {
+                long cost = (long) (n * nanosPerUnit);
+                while (true) {
+                    long now = System.nanoTime();
+                    long cur = tat.get();
+                    long next = Math.max(cur, now) + cost;
+                    if (next - now > burstNanos) return next - now - burstNanos;
+                    if (tat.compareAndSet(cur, next)) return 0;
+                }
+            }
+        }
+
+        /** 单个 IP 的限流状态 */
+        static final class Client {
+            final Bucket requests;   // 请求速率，null 为不限
+            final Bucket bandwidth;  // 带宽，null 为不限
+            final AtomicInteger transfers = new AtomicInteger();
+            volatile long lastSeen = System.nanoTime();
+
+            Client(Bucket requests, Bucket bandwidth) {
+                this.requests = requests;
+                this.bandwidth = bandwidth;
+            }
+        }
+
+        private final ConcurrentHashMap<String, Client> clients = new ConcurrentHashMap<>();
+        private final long ipRequestRate;
+        private final long ipRequestBurst;
+        private final long ipBandwidth;  // 字节/秒
+        private final int ipMaxTransfers;
+        private final Bucket total;  // 全局带宽，null 为不限
+        final LongAdder rejectedRequests = new LongAdder();   // 超过请求速率被拒绝
+        final LongAdder rejectedTransfers = new LongAdder();  // 超过并发传输数被拒绝
+        final LongAdder throttledResponses = new LongAdder();
+        final LongAdder throttledNanos = new LongAdder();
+
+        Qos(Config cfg) {
+            this.ipRequestRate = Math.max(0, cfg.ipRequestRate);
+            this.ipRequestBurst = Math.max(1, cfg.ipRequestBurst);
+            this.ipBandwidth = Math.max(0, cfg.ipBandwidthKB) * 1024L;
+            this.ipMaxTransfers = Math.max(0, cfg.ipMaxTransfers);
+            long totalBandwidth = Math.max(0, cfg.totalBandwidthKB) * 1024L;
+            // 突发量为一秒的流量，至少容纳一个优先段
+            this.total = totalBandwidth > 0 ? new Bucket(totalBandwidth, Math.max(totalBandwidth, PRIORITY_BYTES)) : null;
+            if (perClient()) {
+                ScheduledExecutorService sweeper = Executors.newSingleThreadScheduledExecutor(WorkerPool.threads("qos-sweep"));
+                sweeper.scheduleWithFixedDelay(this::sweep, 1, 1, TimeUnit.MINUTES);
+            }
+        }
+
+        /** 是否需要按 IP 记录状态 */
+        private boolean perClient() {
+            return ipRequestRate > 0 || ipBandwidth > 0 || ipMaxTransfers > 0;
+        }
+
+        /** 是否需要限速包装响应流 */
+        boolean shaping() {
+            return total != null || ipBandwidth > 0;
+        }
+
+        /** 取得（必要时创建）IP 对应的状态，未启用按 IP 限制时返回 null */
+        Client client(String ip) {
+            if (!perClient()) return null;
+            Client c = clients.get(ip);
+            if (c == null) {
+                c = clients.computeIfAbsent(ip, k -> new Client(
+                        ipRequestRate > 0 ? new Bucket(ipRequestRate, ipRequestBurst) : null,
+                        ipBandwidth > 0 ? new Bucket(ipBandwidth, Math.max(ipBandwidth, PRIORITY_BYTES)) : null));
+            }
+            c.lastSeen = System.nanoTime();
+            return c;
+        }
+
+        /** 按请求速率放行，超限时返回建议的重试秒数，否则返回 0 */
+        long admit(Client c) {
+            if (c == null || c.requests == null) return 0;
+            long wait = c.requests.tryAcquire(1);
+            if (wait == 0) return 0;
+            rejectedRequests.increment();
+            return Math.max(1, TimeUnit.NANOSECONDS.toSeconds(wait + 999_999_999L));
+        }
+
+        /** 开始一个大文件传输，超过该 IP 的并发上限时返回 false */
+        boolean beginTransfer(Client c) {
+            if (c == null) return true;
+            int active = c.transfers.incrementAndGet();
+            if (ipMaxTransfers > 0 && active > ipMaxTransfers) {
+                c.transfers.decrementAndGet();
+                rejectedTransfers.increment();
+                return false;
+            }
+            return true;
+        }
+
+        void endTransfer(Client c) {
+            if (c != null) c.transfers.decrementAndGet();
+        }
+
+        int clientCount() {
+            return clients.size();
+        }
+
+        private void sweep() {
+            long now = System.nanoTime();
+            clients.values().removeIf(c -> c.transfers.get() == 0 && now - c.lastSeen > IDLE_NANOS);
+        }
+
+        /** 按 IP 与全局带宽限速的响应流，大块写入拆成小片，依次预约令牌 */
+        static final class ThrottledOutputStream extends FilterOutputStream {
+            private final Qos qos;
+            private final Client client;
+            private long sent;
+            long throttledNanos;  // 本响应因限速等待的总时间
+
+            ThrottledOutputStream(OutputStream out, Qos qos, Client client) {
+                super(out);
+                this.qos = qos;
+                this.client = client;
+            }
+
+            @Override
+            public void write(int b) throws IOException {
+                pace(1);
+                out.write(b);
+                sent++;
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                while (len > 0) {
+                    int n = Math.min(len, SLICE);
+                    pace(n);
+                    out.write(b, off, n);
+                    sent += n;
+                    off += n;
+                    len -= n;
+                }
+            }
+
+            private void pace(int n) throws InterruptedIOException {
+                // 响应开头的优先段照常记账，透支未超出额外的一个突发量时不等待
+                boolean priority = sent < PRIORITY_BYTES;
+                long wait = 0;
+                if (client != null && client.bandwidth != null) {
+                    wait = client.bandwidth.reserve(n);
+                    priority &= client.bandwidth.allowsPriority(wait);
+                }
+                if (qos.total != null) {
+                    long w = qos.total.reserve(n);
+                    priority &= qos.total.allowsPriority(w);
+                    wait = Math.max(wait, w);
+                }
+                if (priority || wait <= 0) return;
+                if (throttledNanos == 0) qos.throttledResponses.increment();
+                throttledNanos += wait;
+                qos.throttledNanos.add(wait);
+                long deadline = System.nanoTime() + wait;
+                for (long left = wait; left > 0; left = deadline - System.nanoTime()) {
+                    LockSupport.parkNanos(left);
+                    if (Thread.interrupted()) throw new InterruptedIOException("限速等待被中断");
+                }
+            }
+        }
+    }
+
+    /* ========== 目录列表缓存 ========== */
+    static class ListingCache {
+        // 以启动时间为种子，避免重启后版本号重复导致弱 ETag 误命中
+        private static final AtomicLong VERSIONS = new AtomicLong(System.currentTimeMillis() << 20);
+
+        /** 已编码的页面及渲染时的附加信息版本（如目录中已算好的校验和） */
+        static final class Page {
+            final long stamp;
+            final byte[] html;
+
+            Page(long stamp, byte[] html) {
+                this.stamp = stamp;
+                this.html = html;
+            }
+        }
+
+        /** 某个目录的扫描快照及各排序方式下已编码的页面 */
+        static class Entry {
+            final List<LoggingFileHandler.FileItem> items;
+            final long version = VERSIONS.incrementAndGet();  // 每次重新扫描都会得到新的版本号
+            final Map<String, Page> rendered = new ConcurrentHashMap<>();
+            final long dirModified;  // 扫描前目录的修改时间，-1 为未知
+            long bytes;  // 估算的内存占用
+
+            Entry(List<LoggingFileHandler.FileItem> items, long dirModified) {
+                this.items = Collections.unmodifiableList(items);
+                this.dirModified = dirModified;
+                long b = 128;
+                for (LoggingFileHandler.FileItem item : items) b += estimate(item);
+                this.bytes = b;
+            }
+
+            /** 渲染时的附加信息版本与 stamp 一致时返回页面，否则返回 null 由调用方重新渲染 */
+            byte[] rendered(String variant, long stamp) {
+                Page page = rendered.get(variant);
+                return page != null && page.stamp == stamp ? page.html : null;
+            }
+        }
+
+        final long budget;
+        private long used;
+        private final LinkedHashMap<Path, Entry> entries = new LinkedHashMap<>(64, 0.75f, true);
+        private final Map<Path, WatchKey> watchKeys = new HashMap<>();
+        private final AtomicLong epoch = new AtomicLong();  // 每次失效都会递增，用于丢弃过期的扫描结果
+        private WatchService watcher;
+
+        ListingCache(long budget) {
+            this.budget = budget;
+            if (budget <= 0) return;
+            try {
+                watcher = FileSystems.getDefault().newWatchService();
+                Thread t = new Thread(this::watchLoop, "sfs-listing-watch");
+                t.setDaemon(true);
+                t.start();
+            } catch (IOException e) {
+                System.err.println("[WARN] 无法启动目录监听，目录列表缓存已禁用: " + e.getMessage());
+                watcher = null;
+            }
+        }
+
+        boolean enabled() {
+            return watcher != null;
+        }
+
+        /** 单个条目的估算内存占用 */
+        static long estimate(LoggingFileHandler.FileItem item) {
+            return 64 + 2L * item.name.length();
+        }
+
+        synchronized int entryCount() {
+            return entries.size();
+        }
+
+        synchronized long usedBytes() {
+            return used;
+        }
+
+        /** 取得缓存的快照；目录修改时间与扫描时不同则视为失效，作为收不到监听事件（如 NFS）时的兜底 */
+        Entry get(Path dir) {
+            Entry entry;
+            synchronized (this) {
+                entry = enabled() ? entries.get(dir) : null;
+            }
+            if (entry == null) return null;
+            if (entry.dirModified != modifiedTime(dir)) {
+                invalidate(dir);
+                return null;
+            }
+            return entry;
+        }
+
+        /** 目录的修改时间（毫秒），无法读取时返回 -1 */
+        static long modifiedTime(Path dir) {
+            try {
+                return Files.getLastModifiedTime(dir).toMillis();
+            } catch (IOException e) {
+                return -1;
+            }
+        }
+
+        /** 在扫描前注册监听，返回当前失效纪元；扫描期间若有变化则结果不会入缓存 */
+        long beginLoad(Path dir) {
+            if (!enabled()) return -1;
+            synchronized (this) {
+                if (!watchKeys.containsKey(dir)) {
+                    try {
+                        watchKeys.put(dir, dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                                StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY));
+                    } catch (IOException e) {
+                        return -1;
+                    }
+                }
+            }
+            return epoch.get();
+        }
+
+        synchronized void put(Path dir, Entry entry, long loadEpoch) {
+            if (!enabled() || loadEpoch < 0 || loadEpoch != epoch.get()) return;
+            if (entry.bytes > budget) return;
+            Entry old = entries.put(dir, entry);
+            if (old != null) used -= old.bytes;
+            used += entry.bytes;
+            evict();
+        }
+
+        /** 记录渲染结果，同一变体的旧页面被原地替换，内存占用不随 stamp 增长 */
+        synchronized void addRendered(Path dir, Entry entry, String variant, long stamp, byte[] html) {
+            // 只有仍在缓存中的快照才记录渲染结果
+            if (entries.get(dir) != entry) return;
+            Page old = entry.rendered.get(variant);
+            if (old != null && old.stamp >= stamp) return;
+            entry.rendered.put(variant, new Page(stamp, html));
+            long delta = html.length - (old == null ? 0 : old.html.length);
+            entry.bytes += delta;
+            used += delta;
+            evict();
+        }
+
+        /** 丢弃全部快照，监听保持不变 */
+        synchronized void clear() {
+            epoch.incrementAndGet();
+            entries.clear();
+            used = 0;
+        }
+
+        synchronized void invalidate(Path dir) {
+            epoch.incrementAndGet();
+            Entry old = entries.remove(dir);
+            if (old != null) used -= old.bytes;
+            WatchKey key = watchKeys.remove(dir);
+            if (key != null) key.cancel();
+        }
+
+        /** 按 LRU 淘汰直到满足内存预算，并取消被淘汰目录的监听 */
+        private void evict() {
+            Iterator<Map.Entry<Path, Entry>> it = entries.entrySet().iterator();
+            while (used > budget && it.hasNext()) {
+                Map.Entry<Path, Entry> e = it.next();
+                used -= e.getValue().bytes;
+                it.remove();
+                WatchKey key = watchKeys.remove(e.getKey());
+                if (key != null) key.cancel();
+            }
+        }
+
+        private void watchLoop() {
+            while (true) {
+                WatchKey key;
+                try {
+                    key = watcher.take();
+                } catch (InterruptedException | ClosedWatchServiceException e) {
+                    return;
+                }
+                Path dir = (Path) key.watchable();
+                boolean overflow = false;
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) overflow = true;
+                }
+                if (overflow) {
+                    // 事件丢失，无法知道哪些目录变了，整体失效
+                    clear();
+                } else {
+                    // 子项变化会影响本目录，同时会改变上级目录中显示的修改时间
+                    invalidate(dir);
+                    if (dir.getParent() != null) invalidate(dir.getParent());
+                }
+                if (!key.reset()) {
+                    synchronized (this) {
+                        watchKeys.remove(dir, key);
+                    }
+                }
+            }
+        }
+    }
+
+    /* ========== 热点文件缓存 ========== */
+    static class FileCache {
+        /** 不可变的响应体（堆外内存）及预先计算好的响应头 */
+        static class Entry {
+            final Path file;
+            final String mime;
+            final String etag;
+            final long lastModified;
+            final String lastModifiedHttp;
+            final ByteBuffer body;
+            final ByteBuffer gzipBody;  // 预压缩版本，可能为 null
+            final String gzipEtag;
+            final boolean vary;
+
+            Entry(Path file, String mime, String etag, long lastModified, byte[] body, byte[] gzipBody,
+                  String gzipEtag, boolean vary) {
+                this.file = file;
+                this.mime = mime;
+                this.etag = etag;
+                this.lastModified = lastModified;
+                this.lastModifiedHttp = LoggingFileHandler.formatHttpDate(lastModified);
+                this.body = direct(body);
+                this.gzipBody = gzipBody == null ? null : direct(gzipBody);
+                this.gzipEtag = gzipEtag;
+                this.vary = vary;
+            }
+
+            private static ByteBuffer direct(byte[] data) {
+                ByteBuffer buf = ByteBuffer.allocateDirect(data.length);
+                buf.put(data).flip();
+                return buf.asReadOnlyBuffer();
+            }
+
+            long bytes() {
+                return 256 + body.capacity() + (gzipBody == null ? 0 : gzipBody.capacity());
+            }
+        }
+
+        final long budget;
+        final long maxFileSize;
+        final LongAdder hits = new LongAdder();
+        final LongAdder misses = new LongAdder();
+        private long used;
+        private final LinkedHashMap<Path, Entry> entries = new LinkedHashMap<>(64, 0.75f, true);
+        private final Map<Path, WatchKey> watchKeys = new HashMap<>();
+        private final AtomicLong epoch = new AtomicLong();  // 每次失效都会递增，用于丢弃过期的读取结果
+        private WatchService watcher;
+
+        FileCache(long budget, long maxFileSize) {
+            this.budget = budget;
+            this.maxFileSize = Math.min(maxFileSize, budget);
+            if (budget <= 0) return;
+            try {
+                watcher = FileSystems.getDefault().newWatchService();
+                Thread t = new Thread(this::watchLoop, "sfs-file-cache-watch");
+                t.setDaemon(true);
+                t.start();
+            } catch (IOException e) {
+                System.err.println("[WARN] 无法启动目录监听，热点文件缓存已禁用: " + e.getMessage());
+                watcher = null;
+            }
+        }
+
+        boolean enabled() {
+            return watcher != null;
+        }
+
+        synchronized long usedBytes() {
+            return used;
+        }
+
+        synchronized Entry get(Path file) {
+            Entry e = entries.get(file);
+            if (e != null) hits.increment();
+            return e;
+        }
+
+        /** 在读取文件前监听其所在目录，返回当前失效纪元 */
+        long beginLoad(Path file) {
+            Path dir = file.getParent();
+            synchronized (this) {
+                if (dir != null && !watchKeys.containsKey(dir)) {
+                    try {
+                        watchKeys.put(dir, dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                                StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY));
+                    } catch (IOException e) {
+                        return -1;
+                    }
+                }
+            }
+            return epoch.get();
+        }
+
+        synchronized void put(Entry entry, long loadEpoch) {
+            if (loadEpoch < 0 || loadEpoch != epoch.get() || entry.bytes() > budget) return;
+            Entry old = entries.put(entry.file, entry);
+            if (old != null) used -= old.bytes();
+            used += entry.bytes();
+            Iterator<Map.Entry<Path, Entry>> it = entries.entrySet().iterator();
+            while (used > budget && it.hasNext()) {
+                used -= it.next().getValue().bytes();
+                it.remove();
+            }
+        }
+
+        /** 目录内任意变化都会使该目录下的缓存文件失效 */
+        synchronized void invalidateDir(Path dir) {
+            epoch.incrementAndGet();
+            Iterator<Entry> it = entries.values().iterator();
+            while (it.hasNext()) {
+                Entry e = it.next();
+                if (dir.equals(e.file.getParent())) {
+                    used -= e.bytes();
+                    it.remove();
+                }
+            }
+            WatchKey key = watchKeys.remove(dir);
+            if (key != null) key.cancel();
+        }
+
+        private void watchLoop() {
+            while (true) {
+                WatchKey key;
+                try {
+                    key = watcher.take();
+                } catch (InterruptedException | ClosedWatchServiceException e) {
+                    return;
+                }
+                Path dir = (Path) key.watchable();
+                key.pollEvents();
+                invalidateDir(dir);
+                key.reset();
+            }
+        }
+    }
+
+    /* ========== 文件校验和 ========== */
+    /**
+     * 后台计算 serve 目录下文件的 SHA-256，供 Digest 响应头、虚拟的 xxx.sha256 地址和目录列表使用。
+     * 查询只读内存表，结果未就绪时把文件排进有界的计算队列并立即返回，请求从不等待计算。
+     * 队列按文件大小排序，小文件先算，个别超大文件不会拖住其余文件。
+     * 结果以 "哈希 大小 修改时间 路径" 的行格式追加到磁盘文件，重启后大小和修改时间未变的文件不再重新计算。
+     */
+    static class Checksums {
+        private static final int QUEUE = 4096;  // 排队和计算中的文件数上限，超出的下次访问时再排队
+        private static final int READ_BUFFER = 1024 * 1024;  // 每次顺序读取的字节数
+        private static final ThreadLocal<ByteBuffer> BUFFERS = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(READ_BUFFER));
+
+        /** 某个文件在给定大小、修改时间下的摘要 */
+        static final class Entry {
+            final long size;
+            final long lastModified;
+            final byte[] sha256;
+
+            Entry(long size, long lastModified, byte[] sha256) {
+                this.size = size;
+                this.lastModified = lastModified;
+                this.sha256 = sha256;
+            }
+        }
+
+        final boolean enabled;
+        private final Path root;
+        private final Path db;
+        private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();  // 相对路径 -> 摘要
+        private final Set<String> pending = ConcurrentHashMap.newKeySet();  // 已排队或计算中的路径
+        private final ConcurrentHashMap<Path, AtomicLong> versions = new ConcurrentHashMap<>();  // 目录 -> 完成的计算次数
+        private final ThreadPoolExecutor pool;
+        private Writer out;  // 追加写入的结果文件，由 this 保护
+        private int lines;  // 结果文件的行数
+        final LongAdder hashedFiles = new LongAdder();
+        final LongAdder hashedBytes = new LongAdder();
+
+        Checksums(Config cfg, Path root) {
+            this.enabled = cfg.checksums;
+            this.root = root;
+            this.db = Paths.get(cfg.checksumDb).toAbsolutePath().normalize();
+            int threads = Math.max(1, cfg.checksumThreads);
+            // 优先队列本身无界，由 pending 限制长度
+            this.pool = !enabled ? null : new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                    new PriorityBlockingQueue<>(), WorkerPool.threads("hash"));
+        }
+
+        /** 读入已有结果并在后台扫描 serve 目录 */
+        void start() {
+            if (!enabled) return;
+            Thread t = new Thread(() -> {
+                load();
+                scan();
+            }, "sfs-hash-scan");
+            t.setDaemon(true);
+            t.start();
+        }
+
+        /** 已算好且与文件当前大小、修改时间一致的摘要；否则安排后台计算并返回 null */
+        byte[] lookup(Path file, long size, long lastModified) {
+            if (!enabled) return null;
+            String key = key(file);
+            if (key == null) return null;
+            Entry e = entries.get(key);
+            if (e != null && e.size == size && e.lastModified == lastModified) return e.sha256;
+            schedule(key, file, size);
+            return null;
+        }
+
+        /** 目录中完成计算的次数，目录列表以此区分渲染结果 */
+        long version(Path dir) {
+            AtomicLong v = versions.get(dir);
+            return v == null ? 0 : v.get();
+        }
+
+        int entryCount() {
+            return entries.size();
+        }
+
+        int queued() {
+            return pending.size();
+        }
+
+        private String key(Path file) {
+            if (!file.startsWith(root) || file.equals(root)) return null;
+            return root.relativize(file).toString().replace(File.separatorChar, '/');
+        }
+
+        private void schedule(String key, Path file, long size) {
+            if (pending.size() >= QUEUE) return;
+            if (pending.add(key)) pool.execute(new HashTask(key, file, size));
+        }
+
+        private final class HashTask implements Runnable, Comparable<HashTask> {
+            final String key;
+            final Path file;
+            final long size;
+
+            HashTask(String key, Path file, long size) {
+                this.key = key;
+                this.file = file;
+                this.size = size;
+            }
+
+            @Override
+            public int compareTo(HashTask o) {
+                return Long.compare(size, o.size);
+            }
+
+            @Override
+            public void run() {
+                try {
+                    hash(key, file);
+                } finally {
+                    pending.remove(key);
+                }
+            }
+        }
+
+        private void hash(String key, Path file) {
+            try {
+                BasicFileAttributes before = Files.readAttributes(file, BasicFileAttributes.class);
+                if (!before.isRegularFile()) return;
+                long size = before.size();
+                long lastModified = before.lastModifiedTime().toMillis();
+                Entry known = entries.get(key);
+                if (known != null && known.size == size && known.lastModified == lastModified) return;
+
+                // 大块顺序读入直接缓冲区；不用 mmap，文件在计算中被截断时映射读取会出错
+                MessageDigest md = MessageDigest.getInstance("SHA-256");
+                ByteBuffer buf = BUFFERS.get();
+                try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+                    while (true) {
+                        buf.clear();
+                        if (ch.read(buf) < 0) break;
+                        buf.flip();
+                        md.update(buf);
+                    }
+                }
+                // 计算期间文件被修改时丢弃结果，下次访问再算
+                BasicFileAttributes after = Files.readAttributes(file, BasicFileAttributes.class);
+                if (after.size() != size || after.lastModifiedTime().toMillis() != lastModified) return;
+
+                Entry e = new Entry(size, lastModified, md.digest());
+                entries.put(key, e);
+                append(key, e);
+                versions.computeIfAbsent(file.getParent(), d -> new AtomicLong()).incrementAndGet();
+                hashedFiles.increment();
+                hashedBytes.add(size);
+            } catch (IOException | NoSuchAlgorithmException e) {
+                // 文件已删除或不可读，下次访问时重试
+            }
+        }
+
+        /* ---------- 持久化 ---------- */
+        private void load() {
+            int n = 0;
+            if (Files.isRegularFile(db)) {
+                try (BufferedReader br = Files.newBufferedReader(db, StandardCharsets.UTF_8)) {
+                    String line;
+                    while ((line = br.readLine()) != null) {
+                        n++;
+                        String[] f = line.split(" ", 4);
+                        if (f.length != 4 || f[0].length() != 64) continue;
+                        try {
+                            entries.put(f[3], new Entry(Long.parseLong(f[1]), Long.parseLong(f[2]), unhex(f[0])));
+                        } catch (NumberFormatException e) {
+                            // 跳过损坏的行
+                        }
+                    }
+                } catch (IOException e) {
+                    System.err.println("[WARN] 读取校验和缓存失败: " + e.getMessage());
+                }
+            }
+            synchronized (this) {
+                lines += n;
+            }
+            System.out.println("[INFO] 已载入校验和缓存: " + entries.size() + " 个文件");
+        }
+
+        /** 遍历 serve 目录，排队计算新增或变化的文件，并清理已删除文件的记录 */
+        private void scan() {
+            Set<String> seen = new HashSet<>();
+            List<HashTask> todo = new ArrayList<>();
+            try {
+                Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+                    @Override
+                    public FileVisitResult visitFile(Path p, BasicFileAttributes attrs) {
+                        if (!attrs.isRegularFile()) return FileVisitResult.CONTINUE;
+                        String key = key(p);
+                        seen.add(key);
+                        Entry e = entries.get(key);
+                        if (e != null && e.size == attrs.size() && e.lastModified == attrs.lastModifiedTime().toMillis()) {
+                            return FileVisitResult.CONTINUE;
+                        }
+                        todo.add(new HashTask(key, p, attrs.size()));
+                        return FileVisitResult.CONTINUE;
+                    }
+
+                    @Override
+                    public FileVisitResult visitFileFailed(Path p, IOException e) {
+                        return FileVisitResult.CONTINUE;
+                    }
+                });
+            } catch (IOException e) {
+                System.err.println("[WARN] 扫描文件计算校验和失败: " + e.getMessage());
+                return;
+            }
+            entries.keySet().retainAll(seen);
+            synchronized (this) {
+                if (lines > entries.size() * 2 + 1024) compact();
+            }
+            // 从小到大提交；队列接近满时等待，避免扫描结果被丢弃
+            Collections.sort(todo);
+            for (HashTask t : todo) {
+                while (pending.size() > QUEUE * 3 / 4) {
+                    LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(50));
+                }
+                schedule(t.key, t.file, t.size);
+            }
+        }
+
+        /** 重写结果文件，只保留当前有效的记录 */
+        private void compact() {
+            Path tmp = db.resolveSibling(db.getFileName() + ".tmp");
+            try {
+                if (out != null) out.close();
+                out = null;
+                int n = 0;
+                try (Writer w = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+                    for (Map.Entry<String, Entry> e : entries.entrySet()) {
+                        if (writeLine(w, e.getKey(), e.getValue())) n++;
+                    }
+                }
+                Files.move(tmp, db, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                lines = n;
+            } catch (IOException e) {
+                System.err.println("[WARN] 整理校验和缓存失败: " + e.getMessage());
+            }
+        }
+
+        private synchronized void append(String key, Entry e) {
+            try {
+                if (out == null) {
+                    Files.createDirectories(db.getParent());
+                    out = Files.newBufferedWriter(db, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+                }
+                if (writeLine(out, key, e)) {
+                    out.flush();
+                    lines++;
+                }
+            } catch (IOException ex) {
+                System.err.println("[WARN] 写入校验和缓存失败: " + ex.getMessage());
+            }
+        }
+
+        private static boolean writeLine(Writer w, String key, Entry e) throws IOException {
+            if (key.indexOf('\n') >= 0 || key.indexOf('\r') >= 0) return false;  // 文件名含换行时只保存在内存中
+            w.write(hex(e.sha256) + " " + e.size + " " + e.lastModified + " " + key + "\n");
+            return true;
+        }
+
+        static String hex(byte[] b) {
+            StringBuilder sb = new StringBuilder(b.length * 2);
+            for (byte x : b) sb.append(Character.forDigit((x >> 4) & 0xF, 16)).append(Character.forDigit(x & 0xF, 16));
+            return sb.toString();
+        }
+
+        private static byte[] unhex(String s) {
+            byte[] b = new byte[s.length() / 2];
+            for (int i = 0; i < b.length; i++) {
+                int hi = Character.digit(s.charAt(i * 2), 16);
+                int lo = Character.digit(s.charAt(i * 2 + 1), 16);
+                if (hi < 0 || lo < 0) throw new NumberFormatException(s);
+                b[i] = (byte) (hi << 4 | lo);
+            }
+            return b;
+        }
+    }
+
+    /* ========== 边缘缓存 ========== */
+    /**
+     * 边缘/镜像模式：本地没有的文件从上游源站拉取，边下载边发给客户端，同时写入本地磁盘缓存，超出容量时按 LRU 淘汰。
+     * 同一文件的并发未命中只产生一次上游请求，后到的请求跟随进行中的下载读取临时文件；
+     * 下载在单独的线程中进行，不受某个客户端快慢的影响。缓存文件超过 edgeFileTtl 后，下一次请求带 If-Modified-Since
+     * 向上游确认，未变化时继续使用本地副本，上游不可达时仍返回旧副本。目录列表直接转发上游页面，只缓存 200 响应，
+     * 按规范化的排序/分页参数建键，在内存中缓存几秒，总大小受 MAX_LISTING_BYTES 限制。
+     */
+    static class EdgeCache {
+        private static final String TEMP_DIR = ".sfs-tmp";  // 下载中的临时文件目录
+        private static final int MAX_PAGE = 8 * 1024 * 1024;  // 转发的目录页、错误页的大小上限
+        private static final long MAX_LISTING_BYTES = 32L * 1024 * 1024;  // 内存中缓存的目录页总大小（含压缩副本）
+        private static final int MAX_LIMIT = 100_000;  // 转发给上游的 limit 参数上限
+
+        final boolean enabled;
+        private final String upstream;  // 上游地址，不含结尾的 /
+        private final Path dir;
+        private final Path tempDir;
+        private final long capacity;
+        private final long listingTtlNanos;
+        private final long fileTtlNanos;
+        private final Duration timeout;
+        private final HttpClient client;
+        private final ExecutorService fetchers;
+        private final AtomicLong tempSeq = new AtomicLong();
+        private final ConcurrentHashMap<String, Fetch> fetches = new ConcurrentHashMap<>();
+        private final ConcurrentHashMap<String, CompletableFuture<Listing>> listingLoads = new ConcurrentHashMap<>();
+        private final ConcurrentHashMap<String, Long> validated = new ConcurrentHashMap<>();  // 缓存文件 -> 上次向上游确认的时间
+        // 以下两个表及计数由 this 保护
+        private final LinkedHashMap<String, Long> files = new LinkedHashMap<>(16, 0.75f, true);  // 缓存文件 -> 大小
+        private final LinkedHashMap<String, Listing> listings = new LinkedHashMap<>(16, 0.75f, true);
+        private long usedBytes;
+        private long listingBytes;
+        final LongAdder hits = new LongAdder();
+        final LongAdder misses = new LongAdder();
+        final LongAdder collapsed = new LongAdder();  // 并入进行中下载的未命中
+        final LongAdder revalidated = new LongAdder();  // 上游确认未变化 (304) 的缓存文件
+        final LongAdder listingHits = new LongAdder();
+        final LongAdder listingMisses = new LongAdder();
+        final LongAdder upstreamBytes = new LongAdder();
+        final LongAdder upstreamErrors = new LongAdder();
+
+        EdgeCache(Config cfg) throws IOException {
+            String up = cfg.upstream == null ? "" : cfg.upstream.trim();
+            while (up.endsWith("/")) up = up.substring(0, up.length() - 1);
+            this.enabled = !up.isEmpty();
+            this.upstream = up;
+            this.dir = Paths.get(cfg.edgeCacheDir).toAbsolutePath().normalize();
+            this.tempDir = dir.resolve(TEMP_DIR);
+            this.capacity = Math.max(1, cfg.edgeCacheMB) * 1024L * 1024L;
+            this.listingTtlNanos = TimeUnit.SECONDS.toNanos(Math.max(0, cfg.edgeListingTtl));
+            this.fileTtlNanos = TimeUnit.SECONDS.toNanos(Math.max(0, cfg.edgeFileTtl));
+            this.timeout = Duration.ofMillis(Math.max(1000, cfg.upstreamTimeoutMs));
+            if (!enabled) {
+                this.client = null;
+                this.fetchers = null;
+                return;
+            }
+            this.fetchers = Executors.newCachedThreadPool(WorkerPool.threads("edge-fetch"));
+            this.client = HttpClient.newBuilder()
+                    .version(HttpClient.Version.HTTP_1_1)
+                    .connectTimeout(timeout)
+                    .followRedirects(HttpClient.Redirect.NORMAL)
+                    .build();
+            // 上次运行遗留的临时文件直接清掉，已完成的缓存文件在后台登记
+            if (Files.isDirectory(tempDir)) {
+                try (DirectoryStream<Path> ds = Files.newDirectoryStream(tempDir)) {
+                    for (Path p : ds) Files.deleteIfExists(p);
+                }
+            }
+            Files.createDirectories(tempDir);
+            Thread scan = new Thread(this::scan, "sfs-edge-scan");
+            scan.setDaemon(true);
+            scan.start();
+        }
+
+        /* ---------- 文件 ---------- */
+        /** 路径在缓存目录中对应的文件，路径非法时返回 null */
+        Path path(String key) {
+            Path p = dir.resolve("." + key).normalize();
+            return p.startsWith(dir) && !p.startsWith(tempDir) && !p.equals(dir) ? p : null;
+        }
+
+        /** 已缓存且在 edgeFileTtl 内确认过的文件；未缓存或需要向上游确认时返回 null，由 fetch 处理 */
+        Path cached(String key) {
+            Path p = path(key);
+            if (p == null || !Files.isRegularFile(p)) return null;
+            Long checked = validated.get(key);  // 上次运行留下的文件没有记录，首次访问时确认
+            if (checked == null || System.nanoTime() - checked >= fileTtlNanos) return null;
+            touched(key);
+            hits.increment();
+            return p;
+        }
+
+        private void touched(String key) {
+            synchronized (this) {
+                files.get(key);  // 更新访问顺序
+            }
+        }
+
+        /** 加入或发起对该路径的上游下载，路径非法时返回 null */
+        Fetch fetch(String key) throws IOException {
+            Fetch f = fetches.get(key);
+            if (f != null) {
+                collapsed.increment();
+                return f;
+            }
+            Path target = path(key);
+            if (target == null) return null;
+            // 临时文件先于 Fetch 对外可见，跟随者总能打开它
+            Fetch created = new Fetch(key, Files.createFile(tempDir.resolve(tempSeq.incrementAndGet() + ".part")), target);
+            try {
+                // 本地已有副本时做条件请求，上游未变化则返回 304
+                created.ifModifiedSince = Files.getLastModifiedTime(target).toMillis();
+            } catch (IOException e) {
+                created.ifModifiedSince = -1;
+            }
+            f = fetches.putIfAbsent(key, created);
+            if (f != null) {
+                Files.deleteIfExists(created.temp);
+                collapsed.increment();
+                return f;
+            }
+            misses.increment();
+            try {
+                fetchers.execute(() -> download(created));
+            } catch (RejectedExecutionException e) {
+                fetches.remove(key, created);
+                Files.deleteIfExists(created.temp);
+                throw new IOException("无法启动下载", e);
+            }
+            return created;
+        }
+
+        private void download(Fetch f) {
+            try {
+                HttpRequest.Builder rb = HttpRequest.newBuilder(upstreamUri(f.key, null)).timeout(timeout)
+                        .header("Accept-Encoding", "identity");
+                if (f.ifModifiedSince > 0) rb.header("If-Modified-Since", LoggingFileHandler.formatHttpDate(f.ifModifiedSince));
+                HttpResponse<InputStream> resp = client.send(rb.build(), HttpResponse.BodyHandlers.ofInputStream());
+                try (InputStream in = resp.body()) {
+                    f.stream = in;
+                    HttpHeaders h = resp.headers();
+                    f.status = resp.statusCode();
+                    if (f.status == 304 && f.ifModifiedSince > 0) {
+                        // 本地副本仍然有效
+                        validated.put(f.key, System.nanoTime());
+                        touched(f.key);
+                        revalidated.increment();
+                        f.notModified = true;
+                        Files.deleteIfExists(f.temp);
+                        f.finish(null);
+                        return;
+                    }
+                    if (f.status == 404 || f.status == 410) removed(f.key);
+                    f.contentType = h.firstValue("Content-Type").orElse(null);
+                    f.length = h.firstValueAsLong("Content-Length").orElse(-1);
+                    long modified = LoggingFileHandler.parseHttpDate(h.firstValue("Last-Modified").orElse("").trim());
+                    f.lastModified = modified < 0 ? -1 : modified * 1000;
+                    if (f.status != 200 || h.firstValue("ETag").orElse("").startsWith("W/")) {
+                        // 错误页或目录页（弱 ETag）：原样转发，不写入磁盘缓存
+                        f.body = readPage(in);
+                        f.finish(null);
+                        return;
+                    }
+                    f.ready();
+                    try (FileChannel out = FileChannel.open(f.temp, StandardOpenOption.WRITE)) {
+                        byte[] buf = new byte[64 * 1024];
+                        ByteBuffer bb = ByteBuffer.wrap(buf);
+                        for (int n; (n = in.read(buf)) >= 0; ) {
+                            bb.clear().limit(n);
+                            while (bb.hasRemaining()) out.write(bb);
+                            upstreamBytes.add(n);
+                            f.progress(n);
+                        }
+                    }
+                }
+                long size = Files.size(f.temp);
+                if (f.length >= 0 && size != f.length) throw new EOFException("上游响应不完整");
+                if (f.lastModified > 0) Files.setLastModifiedTime(f.temp, FileTime.fromMillis(f.lastModified));
+                Files.createDirectories(f.target.getParent());
+                Files.move(f.temp, f.target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                validated.put(f.key, System.nanoTime());
+                added(f.key, size);
+                f.finish(null);
+            } catch (IOException | InterruptedException | RuntimeException e) {
+                upstreamErrors.increment();
+                f.finish(e instanceof IOException ? (IOException) e : new IOException("上游下载失败", e));
+                try {
+                    Files.deleteIfExists(f.temp);
+                } catch (IOException ignored) {
+                }
+            } finally {
+                fetches.remove(f.key, f);
+            }
+        }
+
+        private void added(String key, long size) {
+            List<Path> victims = new ArrayList<>();
+            synchronized (this) {
+                Long old = files.put(key, size);
+                usedBytes += size - (old == null ? 0 : old);
+                Iterator<Map.Entry<String, Long>> it = files.entrySet().iterator();
+                while (usedBytes > capacity && it.hasNext()) {
+                    Map.Entry<String, Long> e = it.next();
+                    if (e.getKey().equals(key)) continue;
+                    it.remove();
+                    usedBytes -= e.getValue();
+                    validated.remove(e.getKey());
+                    victims.add(path(e.getKey()));
+                }
+            }
+            // 正在发送的文件已被打开，删除不影响其读取
+            for (Path p : victims) {
+                try {
+                    Files.deleteIfExists(p);
+                } catch (IOException ignored) {
+                }
+            }
+        }
+
+        /** 上游已删除的文件从本地缓存中移除 */
+        private void removed(String key) {
+            synchronized (this) {
+                Long old = files.remove(key);
+                if (old != null) usedBytes -= old;
+            }
+            validated.remove(key);
+            try {
+                Files.deleteIfExists(path(key));
+            } catch (IOException ignored) {
+            }
+        }
+
+        /** 登记上次运行留下的缓存文件，按访问时间从旧到新加入 LRU */
+        private void scan() {
+            List<Object[]> found = new ArrayList<>();
+            try {
+                Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+                    @Override
+                    public FileVisitResult preVisitDirectory(Path d, BasicFileAttributes attrs) {
+                        return d.equals(tempDir) ? FileVisitResult.SKIP_SUBTREE : FileVisitResult.CONTINUE;
+                    }
+
+                    @Override
+                    public FileVisitResult visitFile(Path p, BasicFileAttributes attrs) {
+                        if (attrs.isRegularFile()) {
+                            String key = "/" + dir.relativize(p).toString().replace(File.separatorChar, '/');
+                            found.add(new Object[]{key, attrs.size(), attrs.lastAccessTime().toMillis()});
+                        }
+                        return FileVisitResult.CONTINUE;
+                    }
+
+                    @Override
+                    public FileVisitResult visitFileFailed(Path p, IOException e) {
+                        return FileVisitResult.CONTINUE;
+                    }
+                });
+            } catch (IOException e) {
+                System.err.println("[WARN] 扫描边缘缓存目录失败: " + e.getMessage());
+            }
+            found.sort(Comparator.comparingLong(o -> (Long) o[2]));
+            for (Object[] o : found) {
+                String key = (String) o[0];
+                boolean known;
+                synchronized (this) {
+                    known = files.containsKey(key);
+                }
+                if (!known) added(key, (Long) o[1]);
+            }
+        }
+
+        synchronized long usedBytes() {
+            return usedBytes;
+        }
+
+        synchronized long listingBytes() {
+            return listingBytes;
+        }
+
+        /* ---------- 目录列表 ---------- */
+        /**
+         * 只保留上游目录页认识的 sort/order/offset/limit 参数，按上游的规则规范化后重新拼接；
+         * 其余参数丢弃，任意查询串都落到有限的几个缓存键上。没有需要转发的参数时返回 null
+         */
+        static String listingQuery(String rawQuery) {
+            String sortBy = "name";
+            String order = "asc";
+            int offset = 0;
+            int limit = -1;
+            if (rawQuery != null) {
+                for (String param : rawQuery.split("&")) {
+                    String[] kv = param.split("=");
+                    if (kv.length == 2) {
+                        if ("sort".equals(kv[0])) sortBy = kv[1];
+                        if ("order".equals(kv[0])) order = kv[1];
+                        if ("offset".equals(kv[0])) offset = LoggingFileHandler.parseInt(kv[1], offset);
+                        if ("limit".equals(kv[0])) limit = LoggingFileHandler.parseInt(kv[1], limit);
+                    }
+                }
+            }
+            if (!"size".equals(sortBy) && !"date".equals(sortBy)) sortBy = "name";
+            if (!"desc".equals(order)) order = "asc";
+            offset = Math.max(0, offset);
+            limit = limit < 0 ? -1 : Math.max(1, Math.min(limit, MAX_LIMIT));
+            if ("name".equals(sortBy) && "asc".equals(order) && offset == 0 && limit < 0) return null;
+            return "sort=" + sortBy + "&order=" + order + (offset > 0 ? "&offset=" + offset : "") + (limit > 0 ? "&limit=" + limit : "");
+        }
+
+        /** 上游目录页，TTL 内直接返回内存中的副本；并发未命中只请求一次上游 */
+        Listing listing(String path, String rawQuery) throws IOException {
+            String query = listingQuery(rawQuery);
+            String key = query == null ? path : path + "?" + query;
+            Listing l;
+            synchronized (this) {
+                l = listings.get(key);
+            }
+            if (l != null && System.nanoTime() - l.expires < 0) {
+                listingHits.increment();
+                return l;
+            }
+            CompletableFuture<Listing> load = new CompletableFuture<>();
+            CompletableFuture<Listing> running = listingLoads.putIfAbsent(key, load);
+            if (running != null) {
+                try {
+                    return running.get(timeout.toMillis(), TimeUnit.MILLISECONDS);
+                } catch (ExecutionException e) {
+                    throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+                } catch (InterruptedException | TimeoutException e) {
+                    throw new IOException("等待上游目录页超时", e);
+                }
+            }
+            listingMisses.increment();
+            try {
+                HttpResponse<InputStream> resp = open(path, query);
+                byte[] body;
+                try (InputStream in = resp.body()) {
+                    body = readPage(in);
+                }
+                l = new Listing(key, resp.statusCode(), resp.headers().firstValue("Content-Type").orElse("text/html; charset=UTF-8"),
+                        body, System.nanoTime() + listingTtlNanos);
+                synchronized (this) {
+                    Listing old = listings.remove(key);
+                    if (old != null) listingBytes -= old.bytes();
+                    // 错误页不缓存，上游恢复后立即可见
+                    if (l.status == 200) {
+                        listings.put(key, l);
+                        listingBytes += l.bytes();
+                        evictListings();
+                    }
+                }
+                load.complete(l);
+                return l;
+            } catch (IOException e) {
+                upstreamErrors.increment();
+                load.completeExceptionally(e);
+                throw e;
+            } finally {
+                listingLoads.remove(key, load);
+            }
+        }
+
+        /** 记录目录页首次压缩的结果，仍在缓存中时计入内存占用 */
+        void gzipped(Listing l, byte[] gz) {
+            synchronized (this) {
+                if (l.gzipBody != null) return;
+                l.gzipBody = gz;
+                if (listings.get(l.key) == l) {
+                    listingBytes += gz.length;
+                    evictListings();
+                }
+            }
+        }
+
+        /** 按 LRU 淘汰目录页直到总大小不超过上限，调用方持有 this */
+        private void evictListings() {
+            Iterator<Listing> it = listings.values().iterator();
+            while (listingBytes > MAX_LISTING_BYTES && it.hasNext()) {
+                listingBytes -= it.next().bytes();
+                it.remove();
+            }
+        }
+
+        /** 向上游发起 GET 请求，响应体由调用方读取并关闭 */
+        /** 向上游发起 GET 请求，headers 为需要转发的请求头名称、值交替排列，值为 null 的跳过 */
+        HttpResponse<InputStream> open(String path, String rawQuery, String... headers) throws IOException {
+            HttpRequest.Builder rb = HttpRequest.newBuilder(upstreamUri(path, rawQuery)).timeout(timeout)
+                    .header("Accept-Encoding", "identity");
+            for (int i = 0; i + 1 < headers.length; i += 2) {
+                if (headers[i + 1] != null) rb.header(headers[i], headers[i + 1]);
+            }
+            try {
+                return client.send(rb.build(), HttpResponse.BodyHandlers.ofInputStream());
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("上游请求被中断");
+            }
+        }
+
+        private URI upstreamUri(String path, String rawQuery) throws IOException {
+            try {
+                String encoded = new URI(null, null, path, null).toASCIIString();
+                return URI.create(upstream + encoded + (rawQuery == null ? "" : "?" + rawQuery));
+            } catch (URISyntaxException | IllegalArgumentException e) {
+                throw new IOException("无效的上游地址: " + path, e);
+            }
+        }
+
+        private static byte[] readPage(InputStream in) throws IOException {
+            byte[] body = in.readNBytes(MAX_PAGE + 1);
+            if (body.length > MAX_PAGE) throw new IOException("上游页面过大");
+            return body;
+        }
+
+        /** 缓存的上游目录页 */
+        static final class Listing {
+            final String key;
+            final int status;
+            final String contentType;
+            final byte[] body;
+            volatile byte[] gzipBody;  // 首次需要时压缩，经 gzipped 设置
+            final long expires;
+
+            Listing(String key, int status, String contentType, byte[] body, long expires) {
+                this.key = key;
+                this.status = status;
+                this.contentType = contentType;
+                this.body = body;
+                this.expires = expires;
+            }
+
+            long bytes() {
+                byte[] gz = gzipBody;
+                return 64 + key.length() * 2L + body.length + (gz == null ? 0 : gz.length);
+            }
+        }
+
+        /** 一次进行中的上游下载，并发请求共享；下载线程写入临时文件，各请求按已写入的长度跟随读取 */
+        final class Fetch {
+            final String key;
+            final Path temp;
+            final Path target;
+            volatile InputStream stream;
+            int status;
+            long length = -1;  // 上游声明的长度，-1 为未知
+            String contentType;
+            long lastModified = -1;
+            long ifModifiedSince = -1;  // 本地已有副本的修改时间，>0 时为条件请求
+            volatile boolean notModified;  // 上游返回 304，本地副本可继续使用
+            byte[] body;  // 不缓存的响应（错误页、目录页）
+            private boolean headReady;
+            private long written;
+            private boolean done;
+            private IOException error;
+
+            Fetch(String key, Path temp, Path target) {
+                this.key = key;
+                this.temp = temp;
+                this.target = target;
+            }
+
+            synchronized void ready() {
+                headReady = true;
+                notifyAll();
+            }
+
+            synchronized void progress(long n) {
+                written += n;
+                notifyAll();
+            }
+
+            synchronized void finish(IOException e) {
+                error = e;
+                done = true;
+                if (e == null) headReady = true;
+                notifyAll();
+            }
+
+            synchronized boolean completed() {
+                return done && error == null;
+            }
+
+            /** 等待上游响应头 */
+            synchronized void awaitHead() throws IOException {
+                long deadline = System.nanoTime() + timeout.toNanos();
+                while (!headReady && !done) waitUntil(deadline);
+                if (!headReady) throw error;
+            }
+
+            /** 等待写入超过 position，返回已写入的字节数；下载结束后不再增长时返回值等于 position */
+            synchronized long await(long position) throws IOException {
+                long deadline = System.nanoTime() + timeout.toNanos();
+                while (written <= position && !done) waitUntil(deadline);
+                if (written <= position && error != null) throw error;
+                return written;
+            }
+
+            /** 上游长时间没有数据时中止下载 */
+            private void waitUntil(long deadline) throws IOException {
+                long left = deadline - System.nanoTime();
+                if (left <= 0) {
+                    InputStream in = stream;
+                    if (in != null) in.close();
+                    throw new IOException("上游响应超时");
+                }
+                try {
+                    wait(Math.max(1, TimeUnit.NANOSECONDS.toMillis(left)));
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException("等待上游下载被中断");
+                }
+            }
+        }
+    }
+
+    /* ========== 文件名搜索索引 ========== */
+    /**
+     * serve 目录下所有路径的内存索引。每个条目只占几个基本类型数组槽位（父条目、名称片段、标志、子条目链表），
+     * 名称片段全局去重，并按小写二元组和三元组建立倒排表；启动时并行遍历建立，之后由递归监听增量维护。
+     */
+    static class SearchIndex {
+        static final int MAX_MATCHES = 10_000;  // 单次查询最多可翻看的命中数，按排名保留最靠前的部分
+        private static final byte DIR = 1, DELETED = 2;
+
+        private final Path root;
+        private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+        private final ForkJoinPool pool = new ForkJoinPool(Math.max(2, Runtime.getRuntime().availableProcessors()));
+        private final Map<WatchKey, Integer> watchDirs = new ConcurrentHashMap<>();  // 监听键 -> 目录条目
+        private WatchService watcher;
+        private volatile boolean building = true;
+        private volatile boolean watchLimitWarned;
+
+        // 条目（下标即条目 id，子条目 id 总是大于父条目 id）
+        private int size, deleted;
+        private int[] parent, name, nextSameName;
+        private int[] firstChild, nextSibling;  // 子条目链表，删除目录时只访问其下的条目
+        private byte[] flags;
+        private final LongIntMap children = new LongIntMap();  // (父条目 << 32 | 片段) -> 条目
+
+        // 去重后的名称片段，segmentTable 为按字符串哈希开放寻址的片段 id 表
+        private int[] segmentTable;
+        private String[] segments, lowerSegments;
+        private int[] firstEntry;  // 片段 -> 同名条目链表头
+        private int segmentCount;
+
+        // 二元组和三元组倒排表：n 元组 -> 包含它的片段（升序）
+        private final LongIntMap trigramIds = new LongIntMap();
+        private int[][] postings;
+        private int[] postingSizes;
+        private int trigramCount;
+
+        SearchIndex(Path root) {
+            this.root = root;
+            reset();
+        }
+
+        /** 后台建立索引并开始监听，不阻塞启动 */
+        void start() {
+            try {
+                watcher = FileSystems.getDefault().newWatchService();
+            } catch (IOException e) {
+                System.err.println("[WARN] 无法启动目录监听，搜索索引不会自动更新: " + e.getMessage());
+            }
+            Thread t = new Thread(() -> {
+                rebuild();
+                if (watcher != null) watchLoop();
+            }, "sfs-search-index");
+            t.setDaemon(true);
+            t.start();
+        }
+
+        boolean building() {
+            return building;
+        }
+
+        int entryCount() {
+            lock.readLock().lock();
+            try {
+                return size - deleted;
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        /* ---------- 查询 ---------- */
+        static class Result {
+            final List<String> paths = new ArrayList<>();  // 相对 serve 的 URL 路径，目录以 / 结尾
+            int total;
+            boolean truncated;
+        }
+
+        /**
+         * 按名称子串查询；含 / 时用最后一段匹配名称，再按完整路径过滤。
+         * 排序依次为：名称完全相同、前缀、单词边界、其他子串，再按名称长度。
+         */
+        Result search(String query, int offset, int limit) {
+            Result result = new Result();
+            String q = query.trim().toLowerCase(Locale.ROOT);
+            String needle = q;
+            int slash = q.lastIndexOf('/');
+            if (slash >= 0) needle = q.substring(slash + 1);
+            if (needle.isEmpty()) return result;
+
+            lock.readLock().lock();
+            try {
+                int[] candidates = candidateSegments(needle);
+                // 边匹配边做 top-k 选择：命中再多也只保留排名最靠前的 offset+limit 项（不超过 MAX_MATCHES）
+                TopK top = new TopK((int) Math.min(MAX_MATCHES, (long) offset + limit));
+                int n = 0;
+                for (int i = 0, count = candidates == null ? segmentCount : candidates.length; i < count; i++) {
+                    int seg = candidates == null ? i : candidates[i];
+                    String lower = lowerSegments[seg];
+                    int score = score(lower, needle);
+                    if (score < 0) continue;
+                    long rank = (long) score << 52 | (long) Math.min(lower.length(), 0xFFFFF) << 32;
+                    for (int e = firstEntry[seg]; e >= 0; e = nextSameName[e]) {
+                        if ((flags[e] & DELETED) != 0 || e == 0) continue;
+                        if (slash >= 0 && !path(e).toLowerCase(Locale.ROOT).contains(q)) continue;
+                        n++;
+                        top.offer(rank | e);
+                    }
+                }
+                result.total = Math.min(n, MAX_MATCHES);
+                result.truncated = n > MAX_MATCHES;
+                long[] matches = top.sorted();
+                for (int i = offset; i < matches.length; i++) {
+                    result.paths.add(path((int) matches[i]));
+                }
+            } finally {
+                lock.readLock().unlock();
+            }
+            return result;
+        }
+
+        /** 保留最小的 k 个值：大顶堆，堆顶为已保留值中最大的一个 */
+        private static final class TopK {
+            private final int k;
+            private long[] heap = new long[16];
+            private int size;
+
+            TopK(int k) {
+                this.k = k;
+            }
+
+            void offer(long v) {
+                if (size < k) {
+                    if (size == heap.length) heap = Arrays.copyOf(heap, Math.min(k, size * 2));
+                    int i = size++;
+                    for (int parent; i > 0 && heap[parent = (i - 1) >>> 1] < v; i = parent) heap[i] = heap[parent];
+                    heap[i] = v;
+                } else if (size > 0 && v < heap[0]) {
+                    int i = 0;
+                    for (int child; (child = 2 * i + 1) < size; i = child) {
+                        if (child + 1 < size && heap[child + 1] > heap[child]) child++;
+                        if (heap[child] <= v) break;
+                        heap[i] = heap[child];
+                    }
+                    heap[i] = v;
+                }
+            }
+
+            long[] sorted() {
+                long[] a = Arrays.copyOf(heap, size);
+                Arrays.sort(a);
+                return a;
+            }
+        }
+
+        /** 匹配等级，不包含时返回 -1 */
+        private static int score(String lower, String needle) {
+            int at = lower.indexOf(needle);
+            if (at < 0) return -1;
+            if (at == 0) return lower.length() == needle.length() ? 0 : 1;
+            for (; at > 0; at = lower.indexOf(needle, at + 1)) {
+                if (!Character.isLetterOrDigit(lower.charAt(at - 1))) return 2;
+            }
+            return 3;
+        }
+
+        /**
+         * 用倒排表求候选片段：两个字符查二元组表，更长的查询对三元组表求交集。
+         * 单个字符几乎命中所有片段，倒排表无从筛选，返回 null 表示扫描全部片段。
+         */
+        private int[] candidateSegments(String needle) {
+            if (needle.length() < 2) return null;
+            if (needle.length() == 2) {
+                int id = trigramIds.get(bigram(needle, 0));
+                return id < 0 ? new int[0] : Arrays.copyOf(postings[id], postingSizes[id]);
+            }
+            int grams = needle.length() - 2;
+            int[][] lists = new int[grams][];
+            int[] sizes = new int[grams];
+            for (int i = 0; i < grams; i++) {
+                int id = trigramIds.get(trigram(needle, i));
+                if (id < 0) return new int[0];
+                lists[i] = postings[id];
+                sizes[i] = postingSizes[id];
+            }
+            // 只取最短的三个倒排表求交集（长表用倍增查找跳过），其余三元组交给子串校验，比继续求交集更快
+            Integer[] order = new Integer[grams];
+            for (int i = 0; i < grams; i++) order[i] = i;
+            Arrays.sort(order, Comparator.comparingInt(i -> sizes[i]));
+            int[] acc = Arrays.copyOf(lists[order[0]], sizes[order[0]]);
+            int accSize = acc.length;
+            for (int k = 1; k < Math.min(grams, 3) && accSize > 0; k++) {
+                int[] other = lists[order[k]];
+                int otherSize = sizes[order[k]], b = 0, out = 0;
+                for (int a = 0; a < accSize && b < otherSize; a++) {
+                    b = gallop(other, b, otherSize, acc[a]);
+                    if (b < otherSize && other[b] == acc[a]) acc[out++] = acc[a];
+                }
+                accSize = out;
+            }
+            return Arrays.copyOf(acc, accSize);
+        }
+
+        /** 在 list[from, to) 中找第一个不小于 target 的位置 */
+        private static int gallop(int[] list, int from, int to, int target) {
+            int step = 1, lo = from, hi = from;
+            while (hi < to && list[hi] < target) {
+                lo = hi + 1;
+                hi += step;
+                step <<= 1;
+            }
+            hi = Math.min(hi, to);
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (list[mid] < target) lo = mid + 1;
+                else hi = mid;
+            }
+            return lo;
+        }
+
+        private static long trigram(String s, int i) {
+            return (long) s.charAt(i) << 32 | (long) s.charAt(i + 1) << 16 | s.charAt(i + 2);
+        }
+
+        /** 二元组的键，第 48 位置 1，与三元组区分 */
+        private static long bigram(String s, int i) {
+            return 1L << 48 | (long) s.charAt(i) << 16 | s.charAt(i + 1);
+        }
+
+        /** 条目的 URL 路径（从根开始，目录以 / 结尾） */
+        private String path(int e) {
+            StringBuilder sb = new StringBuilder();
+            if ((flags[e] & DIR) != 0) sb.append('/');
+            for (; e > 0; e = parent[e]) {
+                sb.insert(0, segments[name[e]]).insert(0, '/');
+            }
+            return sb.toString();
+        }
+
+        /* ---------- 索引维护（调用方持有写锁） ---------- */
+        private void reset() {
+            size = deleted = segmentCount = trigramCount = 0;
+            parent = new int[1024];
+            name = new int[1024];
+            nextSameName = new int[1024];
+            firstChild = new int[1024];
+            nextSibling = new int[1024];
+            flags = new byte[1024];
+            children.clear();
+            segmentTable = new int[2048];
+            Arrays.fill(segmentTable, -1);
+            segments = new String[1024];
+            lowerSegments = new String[1024];
+            firstEntry = new int[1024];
+            trigramIds.clear();
+            postings = new int[1024][];
+            postingSizes = new int[1024];
+            add(-1, "", true);  // 条目 0 为根目录
+        }
+
+        /** 添加条目，已存在时返回原条目 */
+        private int add(int parentId, String segName, boolean isDir) {
+            int seg = intern(segName);
+            long key = (long) parentId << 32 | seg;
+            if (parentId >= 0) {
+                int existing = children.get(key);
+                if (existing >= 0) return existing;
+            }
+            if (size == parent.length) {
+                int cap = size * 2;
+                parent = Arrays.copyOf(parent, cap);
+                name = Arrays.copyOf(name, cap);
+                nextSameName = Arrays.copyOf(nextSameName, cap);
+                firstChild = Arrays.copyOf(firstChild, cap);
+                nextSibling = Arrays.copyOf(nextSibling, cap);
+                flags = Arrays.copyOf(flags, cap);
+            }
+            int e = size++;
+            parent[e] = parentId;
+            name[e] = seg;
+            flags[e] = isDir ? DIR : 0;
+            nextSameName[e] = firstEntry[seg];
+            firstEntry[seg] = e;
+            firstChild[e] = -1;
+            nextSibling[e] = -1;
+            if (parentId >= 0) {
+                children.put(key, e);
+                nextSibling[e] = firstChild[parentId];
+                firstChild[parentId] = e;
+            }
+            return e;
+        }
+
+        /** 查找片段 id，不存在时返回 -1 */
+        private int segmentId(String s) {
+            int mask = segmentTable.length - 1;
+            for (int i = spread(s.hashCode()) & mask; segmentTable[i] >= 0; i = (i + 1) & mask) {
+                if (segments[segmentTable[i]].equals(s)) return segmentTable[i];
+            }
+            return -1;
+        }
+
+        private int intern(String s) {
+            int existing = segmentId(s);
+            if (existing >= 0) return existing;
+            int seg = segmentCount++;
+            if (seg == segments.length) {
+                segments = Arrays.copyOf(segments, seg * 2);
+                lowerSegments = Arrays.copyOf(lowerSegments, seg * 2);
+                firstEntry = Arrays.copyOf(firstEntry, seg * 2);
+            }
+            String lower = s.toLowerCase(Locale.ROOT);
+            segments[seg] = s;
+            lowerSegments[seg] = lower.equals(s) ? s : lower;
+            firstEntry[seg] = -1;
+            if (segmentCount * 2 > segmentTable.length) {
+                segmentTable = new int[segmentTable.length * 2];
+                Arrays.fill(segmentTable, -1);
+                for (int i = 0; i < segmentCount; i++) placeSegment(i);
+            } else {
+                placeSegment(seg);
+            }
+            for (int i = 0; i + 2 <= lower.length(); i++) {
+                addPosting(bigram(lower, i), seg);
+                if (i + 3 <= lower.length()) addPosting(trigram(lower, i), seg);
+            }
+            return seg;
+        }
+
+        private void addPosting(long gram, int seg) {
+            int t = trigramIds.get(gram);
+            if (t < 0) {
+                t = trigramCount++;
+                if (t == postings.length) {
+                    postings = Arrays.copyOf(postings, t * 2);
+                    postingSizes = Arrays.copyOf(postingSizes, t * 2);
+                }
+                postings[t] = new int[4];
+                trigramIds.put(gram, t);
+            }
+            int n = postingSizes[t];
+            if (n > 0 && postings[t][n - 1] == seg) return;  // 同一片段内重复的 n 元组
+            if (n == postings[t].length) postings[t] = Arrays.copyOf(postings[t], n * 2);
+            postings[t][n] = seg;
+            postingSizes[t] = n + 1;
+        }
+
+        private static int spread(int h) {
+            return h ^ (h >>> 16);
+        }
+
+        private void placeSegment(int seg) {
+            int mask = segmentTable.length - 1;
+            int i = spread(segments[seg].hashCode()) & mask;
+            while (segmentTable[i] >= 0) i = (i + 1) & mask;
+            segmentTable[i] = seg;
+        }
+
+        /** 删除条目；删除目录时一并删除其下所有条目 */
+        private void remove(int parentId, String segName) {
+            int seg = segmentId(segName);
+            if (seg < 0) return;
+            int e = children.get((long) parentId << 32 | seg);
+            if (e < 0) return;
+            markDeleted(e);
+            if ((flags[e] & DIR) == 0) return;
+            // 沿子条目链表逐层传播删除标记；已删除的子目录下的条目早已标记，直接跳过
+            int[] stack = new int[16];
+            int top = 0;
+            stack[top++] = e;
+            while (top > 0) {
+                int dir = stack[--top];
+                for (int c = firstChild[dir]; c >= 0; c = nextSibling[c]) {
+                    if ((flags[c] & DELETED) != 0) continue;
+                    markDeleted(c);
+                    if ((flags[c] & DIR) == 0) continue;
+                    if (top == stack.length) stack = Arrays.copyOf(stack, top * 2);
+                    stack[top++] = c;
+                }
+            }
+        }
+
+        private void markDeleted(int e) {
+            flags[e] |= DELETED;
+            children.remove((long) parent[e] << 32 | name[e]);
+            deleted++;
+        }
+
+        /* ---------- 遍历与监听 ---------- */
+        /** 清空并重新遍历整棵目录树；删除过多或监听事件溢出时也会调用 */
+        private void rebuild() {
+            building = true;
+            long t0 = System.nanoTime();
+            for (WatchKey key : watchDirs.keySet()) key.cancel();
+            watchDirs.clear();
+            lock.writeLock().lock();
+            try {
+                reset();
+            } finally {
+                lock.writeLock().unlock();
+            }
+            pool.invoke(new WalkTask(root, 0));
+            building = false;
+            System.out.println("[INFO] 搜索索引已建立: " + entryCount() + " 个条目, 用时 "
+                    + (System.nanoTime() - t0) / 1_000_000 + " ms");
+        }
+
+        /** 每个目录一个任务：读取目录项后一次性加写锁入索引，再并行处理子目录 */
+        private final class WalkTask extends RecursiveAction {
+            private static final long serialVersionUID = 1L;
+            private final Path dir;
+            private final int id;
+
+            WalkTask(Path dir, int id) {
+                this.dir = dir;
+                this.id = id;
+            }
+
+            @Override
+            protected void compute() {
+                watch(dir, id);
+                List<String> names = new ArrayList<>();
+                BitSet dirs = new BitSet();
+                try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir)) {
+                    for (Path p : ds) {
+                        // 不跟随符号链接，避免目录环
+                        if (Files.isDirectory(p, LinkOption.NOFOLLOW_LINKS)) dirs.set(names.size());
+                        names.add(p.getFileName().toString());
+                    }
+                } catch (IOException | DirectoryIteratorException e) {
+                    return;
+                }
+                List<WalkTask> subtasks = new ArrayList<>();
+                lock.writeLock().lock();
+                try {
+                    for (int i = 0; i < names.size(); i++) {
+                        int child = add(id, names.get(i), dirs.get(i));
+                        if (dirs.get(i)) subtasks.add(new WalkTask(dir.resolve(names.get(i)), child));
+                    }
+                } finally {
+                    lock.writeLock().unlock();
+                }
+                invokeAll(subtasks);
+            }
+        }
+
+        private void watch(Path dir, int id) {
+            if (watcher == null) return;
+            try {
+                watchDirs.put(dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_DELETE), id);
+            } catch (IOException e) {
+                // 多为 inotify 监听数达到上限，索引仍可用，只是该目录不会自动更新
+                if (!watchLimitWarned) {
+                    watchLimitWarned = true;
+                    System.err.println("[WARN] 部分目录无法监听，搜索结果可能滞后: " + e.getMessage());
+                }
+            }
+        }
+
+        private void watchLoop() {
+            while (true) {
+                WatchKey key;
+                try {
+                    key = watcher.take();
+                } catch (InterruptedException | ClosedWatchServiceException e) {
+                    return;
+                }
+                Path dir = (Path) key.watchable();
+                Integer dirId = watchDirs.get(key);
+                boolean overflow = false;
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        overflow = true;
+                        continue;
+                    }
+                    if (dirId == null) continue;
+                    String child = ((Path) event.context()).toString();
+                    if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE) {
+                        Path p = dir.resolve(child);
+                        boolean isDir = Files.isDirectory(p, LinkOption.NOFOLLOW_LINKS);
+                        int id;
+                        lock.writeLock().lock();
+                        try {
+                            id = add(dirId, child, isDir);
+                        } finally {
+                            lock.writeLock().unlock();
+                        }
+                        // 新目录可能在注册监听前就已有内容
+                        if (isDir) pool.invoke(new WalkTask(p, id));
+                    } else {
+                        lock.writeLock().lock();
+                        try {
+                            remove(dirId, child);
+                        } finally {
+                            lock.writeLock().unlock();
+                        }
+                    }
+                }
+                if (!key.reset()) watchDirs.remove(key);
+                // 事件丢失或删除标记过多时整体重建
+                if (overflow || (deleted > 100_000 && deleted > size / 2)) rebuild();
+            }
+        }
+    }
+
+    /** 开放寻址的 long -> int 哈希表，键不能为负数，缺失时返回 -1 */
+    static final class LongIntMap {
+        private static final long EMPTY = -1L;
+        private long[] keys;
+        private int[] values;
+        private int size, mask;
+
+        LongIntMap() {
+            clear();
+        }
+
+        void clear() {
+            keys = new long[16];
+            Arrays.fill(keys, EMPTY);
+            values = new int[16];
+            size = 0;
+            mask = 15;
+        }
+
+        private static int hash(long k) {
+            k *= 0x9E3779B97F4A7C15L;
+            return (int) (k ^ (k >>> 32));
+        }
+
+        int get(long key) {
+            for (int i = hash(key) & mask; ; i = (i + 1) & mask) {
+                if (keys[i] == key) return values[i];
+                if (keys[i] == EMPTY) return -1;
+            }
+        }
+
+        void put(long key, int value) {
+            if ((size + 1) * 4 > keys.length * 3) grow();
+            int i = hash(key) & mask;
+            while (keys[i] != EMPTY && keys[i] != key) i = (i + 1) & mask;
+            if (keys[i] == EMPTY) size++;
+            keys[i] = key;
+            values[i] = value;
+        }
+
+        /** 线性探测的回移删除，不留墓碑 */
+        void remove(long key) {
+            int i = hash(key) & mask;
+            while (keys[i] != key) {
+                if (keys[i] == EMPTY) return;
+                i = (i + 1) & mask;
+            }
+            size--;
+            for (int j = (i + 1) & mask; keys[j] != EMPTY; j = (j + 1) & mask) {
+                int home = hash(keys[j]) & mask;
+                // 槽位 j 上的键若其理想位置不在 (i, j] 之间，则可以回移到 i
+                if (i <= j ? (home <= i || home > j) : (home <= i && home > j)) {
+                    keys[i] = keys[j];
+                    values[i] = values[j];
+                    i = j;
+                }
+            }
+            keys[i] = EMPTY;
+        }
+
+        private void grow() {
+            long[] oldKeys = keys;
+            int[] oldValues = values;
+            keys = new long[oldKeys.length * 2];
+            Arrays.fill(keys, EMPTY);
+            values = new int[keys.length];
+            mask = keys.length - 1;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] == EMPTY) continue;
+                int j = hash(oldKeys[i]) & mask;
+                while (keys[j] != EMPTY) j = (j + 1) & mask;
+                keys[j] = oldKeys[i];
+                values[j] = oldValues[i];
+            }
+        }
+    }
+
+    /* ========== 目录打包下载 ========== */
+    /**
+     * 边遍历边输出 ZIP 归档（条目或偏移超过 4 GB、条目数超过 65535 时使用 ZIP64 扩展），不使用临时文件。
+     * 读取线程负责遍历和预读，通过固定数量的循环缓冲区交给请求线程压缩和发送，磁盘读取与压缩互相重叠；
+     * 内存占用与文件大小无关，只有中央目录随条目数增长。
+     */
+    static class ZipStreamer {
+        private static final int CHUNK = 64 * 1024;  // 预读块大小，不超过一块的文件整块处理，无需数据描述符
+        private static final int BUFFERS = 8;  // 每个下载的预读缓冲区个数
+        private static final long ZIP64_THRESHOLD = 0xF0000000L;  // 超过该大小的文件预留 ZIP64 字段（留出压缩膨胀余量）
+        private static final int STORED = 0, DEFLATED = 8;
+        private static final int VERSION_MADE_BY = 3 << 8 | 45;  // Unix，规范版本 4.5
+        private static final ExecutorService READERS = Executors.newCachedThreadPool(WorkerPool.threads("zip-read"));
+
+        final boolean enabled;
+        private final int level;
+        private final Set<String> storeTypes = new HashSet<>();  // 已压缩格式的扩展名，直接 STORE
+
+        ZipStreamer(Config cfg) {
+            this.enabled = cfg.zip;
+            this.level = Math.max(Deflater.BEST_SPEED, Math.min(Deflater.BEST_COMPRESSION, cfg.zipLevel));
+            for (String ext : cfg.zipStoreTypes.split(",")) {
+                ext = ext.trim().toLowerCase(Locale.ROOT);
+                if (ext.startsWith(".")) ext = ext.substring(1);
+                if (!ext.isEmpty()) storeTypes.add(ext);
+            }
+        }
+
+        private boolean store(String name) {
+            int dot = name.lastIndexOf('.');
+            return dot >= 0 && storeTypes.contains(name.substring(dot + 1).toLowerCase(Locale.ROOT));
+        }
+
+        /** 把 dir 打包写入 out，归档内的路径以 prefix 开头 */
+        void write(Path root, Path dir, String prefix, OutputStream out) throws IOException {
+            Pipeline pipeline = new Pipeline(root);
+            READERS.execute(() -> pipeline.read(dir, prefix));
+            Deflater deflater = new Deflater(level, true);
+            Deflater storer = new Deflater(Deflater.NO_COMPRESSION, true);
+            try {
+                new Writer(out, pipeline, deflater, storer).run();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("打包下载被中断");
+            } finally {
+                pipeline.cancelled = true;
+                deflater.end();
+                storer.end();
+            }
+        }
+
+        /** 读取线程交给请求线程的单元 */
+        private static final class Item {
+            static final int DIR = 0, FILE = 1, DATA = 2, END = 3, DONE = 4;
+            final int kind;
+            String name;
+            long mtime;
+            byte[] buf;
+            int len;
+            long crc;
+            boolean complete;  // FILE：整个文件已在 buf 中，crc 已知
+            boolean store;
+            boolean zip64;
+
+            Item(int kind) {
+                this.kind = kind;
+            }
+        }
+
+        /* ---------- 读取阶段 ---------- */
+        private final class Pipeline {
+            private final Path root;
+            private final BlockingQueue<Item> items = new ArrayBlockingQueue<>(BUFFERS * 2);
+            private final BlockingQueue<byte[]> free = new ArrayBlockingQueue<>(BUFFERS);
+            private Path realRoot;
+            volatile boolean cancelled;
+
+            Pipeline(Path root) {
+                this.root = root;
+                for (int i = 0; i < BUFFERS; i++) free.add(new byte[CHUNK]);
+            }
+
+            void read(Path dir, String prefix) {
+                try {
+                    walk(dir, prefix);
+                } catch (IOException | DirectoryIteratorException e) {
+                    System.err.println("[WARN] 打包目录失败: " + dir + " " + e.getMessage());
+                } catch (InterruptedException e) {
+                    return;
+                } finally {
+                    try {
+                        emit(new Item(Item.DONE));
+                    } catch (InterruptedException ignored) {
+                    }
+                }
+            }
+
+            private void walk(Path dir, String name) throws IOException, InterruptedException {
+                // 先打开目录再写目录条目，读不了的目录整个跳过
+                try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir)) {
+                    Item d = new Item(Item.DIR);
+                    d.name = name + "/";
+                    d.mtime = Files.getLastModifiedTime(dir).toMillis();
+                    emit(d);
+                    for (Path p : ds) {
+                        if (cancelled) return;
+                        if (!p.normalize().startsWith(root)) continue;  // 防穿越
+                        BasicFileAttributes attrs;
+                        try {
+                            attrs = Files.readAttributes(p, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                        } catch (IOException e) {
+                            continue;
+                        }
+                        String child = name + "/" + p.getFileName();
+                        if (attrs.isDirectory()) {
+                            try {
+                                walk(p, child);  // 不跟随目录符号链接，避免目录环
+                            } catch (IOException | DirectoryIteratorException e) {
+                                // 只跳过这个子目录，归档继续
+                                System.err.println("[WARN] 打包时跳过目录: " + p + " " + e.getMessage());
+                            }
+                        } else if (attrs.isRegularFile() || (attrs.isSymbolicLink() && linksInsideRoot(p))) {
+                            readFile(p, child);
+                        }
+                    }
+                }
+            }
+
+            /** 指向文件且目标仍在服务目录内的符号链接才打包 */
+            private boolean linksInsideRoot(Path link) {
+                try {
+                    if (realRoot == null) realRoot = root.toRealPath();
+                    return Files.isRegularFile(link) && link.toRealPath().startsWith(realRoot);
+                } catch (IOException e) {
+                    return false;
+                }
+            }
+
+            private void readFile(Path file, String name) throws InterruptedException {
+                InputStream in;
+                long mtime;
+                long size;
+                try {
+                    in = Files.newInputStream(file);
+                    BasicFileAttributes attrs = Files.readAttributes(file, BasicFileAttributes.class);
+                    mtime = attrs.lastModifiedTime().toMillis();
+                    size = attrs.size();
+                } catch (IOException e) {
+                    return;  // 读不了的文件直接跳过
+                }
+                CRC32 crc = new CRC32();
+                // 只读到打开时的大小：文件在读取中变大也不会超出按该大小做出的 ZIP64 判断
+                long remaining = size;
+                try (InputStream is = in) {
+                    byte[] buf = takeBuffer();
+                    int n = fill(is, buf, remaining);
+                    remaining -= n;
+                    crc.update(buf, 0, n);
+                    Item f = new Item(Item.FILE);
+                    f.name = name;
+                    f.mtime = mtime;
+                    f.buf = buf;
+                    f.len = n;
+                    f.store = store(name);
+                    f.complete = n < CHUNK || remaining == 0;
+                    f.zip64 = !f.complete && size >= ZIP64_THRESHOLD;
+                    f.crc = crc.getValue();
+                    emit(f);
+                    if (f.complete) return;
+                    try {
+                        do {
+                            buf = takeBuffer();
+                            n = fill(is, buf, remaining);
+                            remaining -= n;
+                            crc.update(buf, 0, n);
+                            Item data = new Item(Item.DATA);
+                            data.buf = buf;
+                            data.len = n;
+                            emit(data);
+                        } while (n == CHUNK && remaining > 0);
+                    } finally {
+                        // 读取中途出错时按已读内容结束该条目，保证归档结构完整
+                        Item end = new Item(Item.END);
+                        end.crc = crc.getValue();
+                        emit(end);
+                    }
+                } catch (IOException e) {
+                    System.err.println("[WARN] 打包时读取文件失败: " + file + " " + e.getMessage());
+                }
+            }
+
+            /** 读满 buf，最多读 limit 个字节 */
+            private int fill(InputStream in, byte[] buf, long limit) throws IOException {
+                int want = (int) Math.min(buf.length, limit);
+                int n = 0;
+                while (n < want) {
+                    int r = in.read(buf, n, want - n);
+                    if (r < 0) break;
+                    n += r;
+                }
+                return n;
+            }
+
+            /** 请求线程退出后不再阻塞，避免读取线程永久挂起 */
+            private byte[] takeBuffer() throws InterruptedException {
+                while (true) {
+                    if (cancelled) throw new InterruptedException();
+                    byte[] buf = free.poll(100, TimeUnit.MILLISECONDS);
+                    if (buf != null) return buf;
+                }
+            }
+
+            private void emit(Item item) throws InterruptedException {
+                while (!items.offer(item, 100, TimeUnit.MILLISECONDS)) {
+                    if (cancelled) throw new InterruptedException();
+                }
+            }
+        }
+
+        /* ---------- 压缩与输出阶段 ---------- */
+        private static final class Writer {
+            private final OutputStream out;
+            private final Pipeline pipeline;
+            private final Deflater deflater;
+            private final Deflater storer;  // 0 级压缩，用于大的已压缩格式文件
+            private final ByteArrayOutputStream central = new ByteArrayOutputStream(4096);
+            private byte[] deflated = new byte[CHUNK];
+            private long written;
+            private long count;
+
+            Writer(OutputStream out, Pipeline pipeline, Deflater deflater, Deflater storer) {
+                this.out = new BufferedOutputStream(out, CHUNK);
+                this.pipeline = pipeline;
+                this.deflater = deflater;
+                this.storer = storer;
+            }
+
+            void run() throws IOException, InterruptedException {
+                while (true) {
+                    Item item = pipeline.items.take();
+                    switch (item.kind) {
+                        case Item.DIR:
+                            long offset = written;
+                            localHeader(item.name, STORED, false, item.mtime, 0, 0, 0, false);
+                            centralEntry(item.name, STORED, false, item.mtime, 0, 0, 0, offset, false, true);
+                            break;
+                        case Item.FILE:
+                            if (item.complete) writeWhole(item);
+                            else writeStreamed(item);
+                            break;
+                        case Item.DONE:
+                            finish();
+                            out.flush();
+                            return;
+                        default:
+                            throw new IllegalStateException("unexpected zip item " + item.kind);
+                    }
+                }
+            }
+
+            /** 小文件：先压缩再写头，不需要数据描述符；压缩后不变小则改为 STORE */
+            private void writeWhole(Item f) throws IOException {
+                int method = STORED;
+                byte[] data = f.buf;
+                int size = f.len;
+                if (!f.store && f.len > 0) {
+                    deflater.reset();
+                    deflater.setInput(f.buf, 0, f.len);
+                    deflater.finish();
+                    int n = 0;
+                    while (!deflater.finished()) {
+                        if (n == deflated.length) deflated = Arrays.copyOf(deflated, n * 2);
+                        n += deflater.deflate(deflated, n, deflated.length - n);
+                    }
+                    if (n < f.len) {
+                        method = DEFLATED;
+                        data = deflated;
+                        size = n;
+                    }
+                }
+                long offset = written;
+                localHeader(f.name, method, false, f.mtime, f.crc, size, f.len, false);
+                write(data, 0, size);
+                recycle(f.buf);
+                centralEntry(f.name, method, false, f.mtime, f.crc, size, f.len, offset, false, false);
+            }
+
+            /**
+             * 大文件：写带数据描述符的头，边收数据边压缩，最后补上 CRC 与大小。
+             * STORE 条目不能带数据描述符（ZipInputStream 等流式读取器会拒绝），已压缩格式改用 0 级 DEFLATE。
+             */
+            private void writeStreamed(Item f) throws IOException, InterruptedException {
+                Deflater d = f.store ? storer : deflater;
+                long offset = written;
+                localHeader(f.name, DEFLATED, true, f.mtime, 0, 0, 0, f.zip64);
+                long dataStart = written;
+                long size = 0;
+                d.reset();
+                Item item = f;
+                while (item.kind != Item.END) {
+                    size += item.len;
+                    d.setInput(item.buf, 0, item.len);
+                    while (!d.needsInput()) drainDeflater(d);
+                    recycle(item.buf);
+                    item = pipeline.items.take();
+                }
+                d.finish();
+                while (!d.finished()) drainDeflater(d);
+                long compressed = written - dataStart;
+                long crc = item.crc;
+
+                // 数据描述符
+                le32(0x08074b50);
+                le32(crc);
+                if (f.zip64) {
+                    le64(compressed);
+                    le64(size);
+                } else {
+                    le32(compressed);
+                    le32(size);
+                }
+                centralEntry(f.name, DEFLATED, true, f.mtime, crc, compressed, size, offset, f.zip64, false);
+            }
+
+            private void drainDeflater(Deflater d) throws IOException {
+                int n = d.deflate(deflated, 0, deflated.length);
+                if (n > 0) write(deflated, 0, n);
+            }
+
+            private void recycle(byte[] buf) {
+                pipeline.free.offer(buf);
+            }
+
+            private void localHeader(String name, int method, boolean descriptor, long mtime,
+                                     long crc, long compressed, long size, boolean zip64) throws IOException {
+                byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+                le32(0x04034b50);
+                le16(zip64 ? 45 : 20);
+                le16(0x0800 | (descriptor ? 0x0008 : 0));  // UTF-8 文件名
+                le16(method);
+                le32(dosTime(mtime));
+                le32(crc);
+                le32(zip64 ? 0xFFFFFFFFL : compressed);
+                le32(zip64 ? 0xFFFFFFFFL : size);
+                le16(nameBytes.length);
+                le16(zip64 ? 20 : 0);
+                write(nameBytes, 0, nameBytes.length);
+                if (zip64) {
+                    le16(0x0001);
+                    le16(16);
+                    le64(0);
+                    le64(0);
+                }
+            }
+
+            private void centralEntry(String name, int method, boolean descriptor, long mtime, long crc, long compressed,
+                                      long size, long offset, boolean zip64, boolean dir) throws IOException {
+                byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+                boolean bigSizes = zip64 || size >= 0xFFFFFFFFL || compressed >= 0xFFFFFFFFL;
+                boolean bigOffset = offset >= 0xFFFFFFFFL;
+                int extra = (bigSizes ? 16 : 0) + (bigOffset ? 8 : 0);
+                ByteArrayOutputStream cd = central;
+                cdLe32(cd, 0x02014b50);
+                cdLe16(cd, VERSION_MADE_BY);
+                cdLe16(cd, bigSizes || bigOffset ? 45 : 20);
+                cdLe16(cd, 0x0800 | (descriptor ? 0x0008 : 0));
+                cdLe16(cd, method);
+                cdLe32(cd, dosTime(mtime));
+                cdLe32(cd, crc);
+                cdLe32(cd, bigSizes ? 0xFFFFFFFFL : compressed);
+                cdLe32(cd, bigSizes ? 0xFFFFFFFFL : size);
+                cdLe16(cd, nameBytes.length);
+                cdLe16(cd, extra > 0 ? extra + 4 : 0);
+                cdLe16(cd, 0);  // 注释
+                cdLe16(cd, 0);  // 磁盘号
+                cdLe16(cd, 0);  // 内部属性
+                cdLe32(cd, dir ? (040755L << 16) | 0x10 : 0100644L << 16);
+                cdLe32(cd, bigOffset ? 0xFFFFFFFFL : offset);
+                cd.write(nameBytes, 0, nameBytes.length);
+                if (extra > 0) {
+                    cdLe16(cd, 0x0001);
+                    cdLe16(cd, extra);
+                    if (bigSizes) {
+                        cdLe64(cd, size);
+                        cdLe64(cd, compressed);
+                    }
+                    if (bigOffset) cdLe64(cd, offset);
+                }
+                count++;
+            }
+
+            /** 中央目录与结束记录，需要时附加 ZIP64 结束记录和定位器 */
+            private void finish() throws IOException {
+                long cdOffset = written;
+                long cdSize = central.size();
+                central.writeTo(out);
+                written += cdSize;
+                if (count >= 0xFFFF || cdOffset >= 0xFFFFFFFFL || cdSize >= 0xFFFFFFFFL) {
+                    long zip64End = written;
+                    le32(0x06064b50);
+                    le64(44);
+                    le16(VERSION_MADE_BY);
+                    le16(45);
+                    le32(0);
+                    le32(0);
+                    le64(count);
+                    le64(count);
+                    le64(cdSize);
+                    le64(cdOffset);
+                    le32(0x07064b50);
+                    le32(0);
+                    le64(zip64End);
+                    le32(1);
+                }
+                le32(0x06054b50);
+                le16(0);
+                le16(0);
+                le16((int) Math.min(count, 0xFFFF));
+                le16((int) Math.min(count, 0xFFFF));
+                le32(Math.min(cdSize, 0xFFFFFFFFL));
+                le32(Math.min(cdOffset, 0xFFFFFFFFL));
+                le16(0);
+            }
+
+            private void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+                written += len;
+            }
+
+            private void le16(int v) throws IOException {
+                out.write(v);
+                out.write(v >>> 8);
+                written += 2;
+            }
+
+            private void le32(long v) throws IOException {
+                le16((int) (v & 0xFFFF));
+                le16((int) ((v >>> 16) & 0xFFFF));
+            }
+
+            private void le64(long v) throws IOException {
+                le32(v & 0xFFFFFFFFL);
+                le32(v >>> 32);
+            }
+
+            private static void cdLe16(ByteArrayOutputStream cd, int v) {
+                cd.write(v);
+                cd.write(v >>> 8);
+            }
+
+            private static void cdLe32(ByteArrayOutputStream cd, long v) {
+                cdLe16(cd, (int) (v & 0xFFFF));
+                cdLe16(cd, (int) ((v >>> 16) & 0xFFFF));
+            }
+
+            private static void cdLe64(ByteArrayOutputStream cd, long v) {
+                cdLe32(cd, v & 0xFFFFFFFFL);
+                cdLe32(cd, v >>> 32);
+            }
+        }
+
+        /** MS-DOS 格式的本地时间，高 16 位为日期，低 16 位为时间 */
+        static long dosTime(long millis) {
+            LocalDateTime t = LocalDateTime.ofInstant(Instant.ofEpochMilli(millis), ZoneId.systemDefault());
+            if (t.getYear() < 1980) return (1 << 21) | (1 << 16);
+            return (long) (t.getYear() - 1980) << 25 | t.getMonthValue() << 21 | t.getDayOfMonth() << 16
+                    | t.getHour() << 11 | t.getMinute() << 5 | t.getSecond() >> 1;
+        }
+    }
+
+    /* ========== 响应压缩 ========== */
+    static class Compression {
+        final boolean enabled;
+        final long minSize;
+        final long maxSize;
+        private final String[] types;
+
+        Compression(Config cfg) {
+            this.enabled = cfg.compression;
+            this.minSize = cfg.compressMinSize;
+            this.maxSize = cfg.compressMaxSize;
+            this.types = cfg.compressTypes.toLowerCase(Locale.ROOT).split("\\s*,\\s*");
+        }
+
+        boolean isCompressible(String mime) {
+            String m = mime.toLowerCase(Locale.ROOT);
+            for (String t : types) {
+                if (!t.isEmpty() && m.startsWith(t)) return true;
+            }
+            return false;
+        }
+
+        /** 解析 Accept-Encoding，客户端接受 gzip（q 值大于 0）时返回 true */
+        boolean acceptsGzip(Exchange ex) {
+            String header = ex.getRequestHeaders().getFirst("Accept-Encoding");
+            if (header == null) return false;
+            for (String part : header.split(",")) {
+                String[] kv = part.trim().split(";");
+                String coding = kv[0].trim().toLowerCase(Locale.ROOT);
+                if (!coding.equals("gzip") && !coding.equals("*")) continue;
+                for (int i = 1; i < kv.length; i++) {
+                    String param = kv[i].trim();
+                    if (param.startsWith("q=")) {
+                        try {
+                            if (Double.parseDouble(param.substring(2)) <= 0) return false;
+                        } catch (NumberFormatException e) {
+                            return false;
+                        }
+                    }
+                }
+                return true;
+            }
+            return false;
+        }
+
+        /** 预压缩文件存在且不早于原文件时返回其属性，否则返回 null */
+        static BasicFileAttributes sidecarAttributes(Path sidecar, BasicFileAttributes original) {
+            try {
+                BasicFileAttributes attrs = Files.readAttributes(sidecar, BasicFileAttributes.class);
+                if (!attrs.isRegularFile()) return null;
+                if (attrs.lastModifiedTime().compareTo(original.lastModifiedTime()) < 0) return null;
+                return attrs;
+            } catch (IOException e) {
+                return null;
+            }
+        }
+
+        static byte[] gzip(byte[] data) throws IOException {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream(data.length / 4 + 64);
+            try (GZIPOutputStream gz = new GZIPOutputStream(bos)) {
+                gz.write(data);
+            }
+            return bos.toByteArray();
+        }
+    }
+
+    /* ========== 字节计数输出流 ========== */
+    static class CountingOutputStream extends FilterOutputStream {
+        long count;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        /** 被包装的输出流 */
+        OutputStream inner() {
+            return out;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+
+    /* ========== 异步访问日志 ========== */
+    static class AccessLog {
+        private static final DateTimeFormatter SIMPLE_TIME =
+                DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss", Locale.getDefault());
+        private static final DateTimeFormatter CLF_TIME =
+                DateTimeFormatter.ofPattern("dd/MMM/yyyy:HH:mm:ss Z", Locale.ENGLISH);
+        private static final DateTimeFormatter ROTATE_SUFFIX = DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss");
+        private static final int BATCH = 256;  // 每写入多少条强制刷新一次
+        private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(500);
+
+        /** 一条访问记录，由请求线程填充后交给写线程格式化 */
+        static class Record {
+            long time;
+            long micros;
+            String ip;
+            String method;
+            String path;
+            String query;
+            String protocol;
+            int status;
+            long bytes;
+            long throttledMicros;  // 因限速等待的时间
+            String referer;
+            String userAgent;
+        }
+
+        private final ConcurrentLinkedQueue<Record> queue = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger size = new AtomicInteger();
+        private final LongAdder dropped = new LongAdder();
+        private final int capacity;
+        private final boolean block;
+        private final String format;
+        private final Path file;  // null 表示输出到 stdout
+        private final long maxBytes;
+        private final boolean daily;
+        private final Thread writer;
+        private volatile boolean idle;
+        private volatile boolean closing;
+
+        private Writer out;
+        private CountingOutputStream fileOut;
+        private java.time.LocalDate openedDay;
+
+        AccessLog(Config cfg) {
+            this.capacity = Math.max(1, cfg.accessLogQueue);
+            this.block = "block".equals(cfg.accessLogOverflow);
+            this.format = cfg.accessLogFormat;
+            this.file = "stdout".equalsIgnoreCase(cfg.accessLog) ? null : Paths.get(cfg.accessLog);
+            this.maxBytes = cfg.accessLogMaxMB * 1024L * 1024L;
+            this.daily = cfg.accessLogDaily;
+            this.writer = new Thread(this::run, "sfs-access-log");
+            this.writer.setDaemon(true);
+            this.writer.start();
+            Runtime.getRuntime().addShutdownHook(new Thread(this::close, "sfs-access-log-close"));
+        }
+
+        /** 被丢弃的日志条数 */
+        long dropped() {
+            return dropped.sum();
+        }
+
+        void submit(Record r) {
+            while (size.incrementAndGet() > capacity) {
+                size.decrementAndGet();
+                if (!block) {
+                    dropped.increment();
+                    return;
+                }
+                // 阻塞策略：唤醒写线程并等待其腾出空间
+                LockSupport.unpark(writer);
+                LockSupport.parkNanos(100_000);
+            }
+            queue.offer(r);
+            if (idle) LockSupport.unpark(writer);
+        }
+
+        private void close() {
+            closing = true;
+            LockSupport.unpark(writer);
+            try {
+                writer.join(2000);
+            } catch (InterruptedException ignored) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        /* ---------- 写线程 ---------- */
+        private void run() {
+            int batch = 0;
+            long reportedDrops = 0;
+            StringBuilder line = new StringBuilder(256);
+            while (true) {
+                Record r = queue.poll();
+                try {
+                    if (r == null) {
+                        if (batch > 0 && out != null) {
+                            out.flush();
+                            batch = 0;
+                        }
+                        long drops = dropped.sum();
+                        if (drops != reportedDrops) {
+                            System.err.println("[WARN] 访问日志队列已满，累计丢弃 " + drops + " 条");
+                            reportedDrops = drops;
+                        }
+                        if (closing) {
+                            if (out != null && file != null) out.close();
+                            return;
+                        }
+                        idle = true;
+                        if (queue.isEmpty()) LockSupport.parkNanos(IDLE_PARK_NANOS);
+                        idle = false;
+                        continue;
+                    }
+                    size.decrementAndGet();
+                    ensureOpen(r.time);
+                    line.setLength(0);
+                    format(r, line);
+                    out.write(line.toString());
+                    if (++batch >= BATCH) {
+                        out.flush();
+                        batch = 0;
+                    }
+                } catch (IOException e) {
+                    System.err.println("[ERROR] 写入访问日志失败: " + e.getMessage());
+                    out = null;  // 下次写入时重新打开
+                    batch = 0;
+                }
+            }
+        }
+
+        /** 打开日志文件，并在超过大小或跨天时轮转 */
+        private void ensureOpen(long time) throws IOException {
+            if (file == null) {
+                if (out == null) out = new BufferedWriter(new OutputStreamWriter(System.out), 64 * 1024);
+                return;
+            }
+            java.time.LocalDate today = java.time.LocalDate.now();
+            if (out != null) {
+                boolean full = maxBytes > 0 && fileOut.count >= maxBytes;
+                boolean nextDay = daily && !today.equals(openedDay);
+                if (!full && !nextDay) return;
+                out.close();
+                out = null;
+                // 同一秒内多次轮转时追加序号，不覆盖已轮转的文件
+                String rotated = file.getFileName() + "." + LocalDateTime.now().format(ROTATE_SUFFIX);
+                for (int seq = 0; ; seq++) {
+                    try {
+                        Files.move(file, file.resolveSibling(seq == 0 ? rotated : rotated + "-" + seq));
+                        break;
+                    } catch (FileAlreadyExistsException e) {
+                        // 换下一个序号
+                    }
+                }
+            }
+            if (file.getParent() != null) Files.createDirectories(file.getParent());
+            long existing = Files.exists(file) ? Files.size(file) : 0;
+            fileOut = new CountingOutputStream(new FileOutputStream(file.toFile(), true));
+            fileOut.count = existing;
+            out = new BufferedWriter(new OutputStreamWriter(fileOut, StandardCharsets.UTF_8), 64 * 1024);
+            openedDay = today;
+        }
+
+        private void format(Record r, StringBuilder sb) {
+            java.time.ZonedDateTime time = java.time.Instant.ofEpochMilli(r.time).atZone(java.time.ZoneId.systemDefault());
+            if ("common".equals(format) || "combined".equals(format)) {
+                // %h - - [%t] "%r" %>s %b ["%{Referer}i" "%{User-Agent}i"] %D
+                sb.append(r.ip).append(" - - [").append(CLF_TIME.format(time)).append("] \"")
+                  .append(r.method).append(' ').append(r.path);
+                if (r.query != null) sb.append('?').append(r.query);
+                sb.append(' ').append(r.protocol).append("\" ").append(r.status).append(' ');
+                if (r.bytes > 0) sb.append(r.bytes); else sb.append('-');
+                if ("combined".equals(format)) {
+                    sb.append(" \"").append(r.referer == null ? "-" : escape(r.referer))
+                      .append("\" \"").append(r.userAgent == null ? "-" : escape(r.userAgent)).append('"');
+                }
+                sb.append(' ').append(r.micros);
+                if (r.throttledMicros > 0) sb.append(" throttled=").append(r.throttledMicros);
+                sb.append(System.lineSeparator());
+            } else {
+                sb.append(String.format("[%s] %d | %-15s | %s (%.3fs) %d B",
+                        SIMPLE_TIME.format(time), r.status, r.ip, r.path, r.micros / 1_000_000.0, r.bytes));
+                if (r.throttledMicros > 0) sb.append(String.format(" 限速 %.3fs", r.throttledMicros / 1_000_000.0));
+                sb.append(System.lineSeparator());
+            }
+        }
+
+        private static String escape(String s) {
+            return s.indexOf('"') < 0 ? s : s.replace("\"", "\\\"");
+        }
+    }
+
+    /* ========== 监控指标 ========== */
+    static class Metrics {
+        static final int FILE = 0;
+        static final int LISTING = 1;
+        static final int RESOURCE = 2;
+        static final int ERROR = 3;
+        private static final String[] ROUTES = {"file", "listing", "resource", "error"};
+        private static final double[] QUANTILES = {0.5, 0.99, 0.999};
+
+        private final LongAdder[] requests = adders(ROUTES.length);
+        private final LongAdder[] bytes = adders(ROUTES.length);
+        private final Histogram[] latency = new Histogram[ROUTES.length];
+        final Histogram listingScan = new Histogram();
+        final LongAdder inflight = new LongAdder();
+        final LongAdder activeTransfers = new LongAdder();
+        final LongAdder connections = new LongAdder();  // 由引擎回调维护，仅 nio 引擎可用
+
+        Metrics() {
+            for (int i = 0; i < latency.length; i++) latency[i] = new Histogram();
+        }
+
+        private static LongAdder[] adders(int n) {
+            LongAdder[] a = new LongAdder[n];
+            for (int i = 0; i < n; i++) a[i] = new LongAdder();
+            return a;
+        }
+
+        /** 请求线程调用，不分配对象 */
+        void record(int route, long micros, long sentBytes) {
+            requests[route].increment();
+            bytes[route].add(sentBytes);
+            latency[route].record(micros);
+        }
+
+        void render(StringBuilder sb) {
+            sb.append("# HELP sfs_requests_total Requests handled, by route class.\n")
+              .append("# TYPE sfs_requests_total counter\n");
+            for (int i = 0; i < ROUTES.length; i++) {
+                sb.append("sfs_requests_total{route=\"").append(ROUTES[i]).append("\"} ").append(requests[i].sum()).append('\n');
+            }
+            sb.append("# HELP sfs_sent_bytes_total Response body bytes sent, by route class.\n")
+              .append("# TYPE sfs_sent_bytes_total counter\n");
+            for (int i = 0; i < ROUTES.length; i++) {
+                sb.append("sfs_sent_bytes_total{route=\"").append(ROUTES[i]).append("\"} ").append(bytes[i].sum()).append('\n');
+            }
+            sb.append("# HELP sfs_request_duration_seconds Request latency, by route class.\n")
+              .append("# TYPE sfs_request_duration_seconds summary\n");
+            for (int i = 0; i < ROUTES.length; i++) {
+                latency[i].render(sb, "sfs_request_duration_seconds", "route=\"" + ROUTES[i] + "\",");
+            }
+            sb.append("# HELP sfs_listing_scan_seconds Time spent scanning directories on listing cache misses.\n")
+              .append("# TYPE sfs_listing_scan_seconds summary\n");
+            listingScan.render(sb, "sfs_listing_scan_seconds", "");
+            gauge(sb, "sfs_inflight_requests", "Requests currently being handled.", inflight.sum());
+            gauge(sb, "sfs_active_transfers", "File bodies currently being sent.", activeTransfers.sum());
+        }
+
+        static void gauge(StringBuilder sb, String name, String help, long value) {
+            sb.append("# HELP ").append(name).append(' ').append(help).append('\n')
+              .append("# TYPE ").append(name).append(" gauge\n")
+              .append(name).append(' ').append(value).append('\n');
+        }
+
+        static void counter(StringBuilder sb, String name, String help, long value) {
+            sb.append("# HELP ").append(name).append(' ').append(help).append('\n')
+              .append("# TYPE ").append(name).append(" counter\n")
+              .append(name).append(' ').append(value).append('\n');
+        }
+
+        static void counter(StringBuilder sb, String name, String help, double value) {
+            sb.append("# HELP ").append(name).append(' ').append(help).append('\n')
+              .append("# TYPE ").append(name).append(" counter\n")
+              .append(name).append(' ').append(value).append('\n');
+        }
+
+        /**
+         * 对数-线性直方图（单位：微秒）：每个 2 的幂区间再等分为 16 个桶，相对误差不超过 1/16。
+         * 记录只需一次原子自增，不分配对象。
+         */
+        static class Histogram {
+            private static final int SUB_BITS = 4;
+            private static final int SUB = 1 << SUB_BITS;
+            private final AtomicLongArray counts = new AtomicLongArray((64 - SUB_BITS + 1) * SUB);
+            private final LongAdder count = new LongAdder();
+            private final LongAdder sum = new LongAdder();
+
+            void record(long value) {
+                if (value < 0) value = 0;
+                counts.incrementAndGet(index(value));
+                count.increment();
+                sum.add(value);
+            }
+
+            static int index(long value) {
+                if (value < SUB) return (int) value;
+                int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+                return (shift + 1) * SUB + (int) ((value >>> shift) & (SUB - 1));
+            }
+
+            /** 桶的上界 */
+            static long upperBound(int index) {
+                if (index < SUB) return index;
+                int shift = index / SUB - 1;
+                long lower = (long) (SUB + index % SUB) << shift;
+                return lower + (1L << shift) - 1;
+            }
+
+            long quantile(double q) {
+                int n = counts.length();
+                long total = 0;
+                for (int i = 0; i < n; i++) total += counts.get(i);
+                if (total == 0) return 0;
+                long rank = (long) Math.ceil(q * total);
+                long seen = 0;
+                for (int i = 0; i < n; i++) {
+                    seen += counts.get(i);
+                    if (seen >= rank) return upperBound(i);
+                }
+                return upperBound(n - 1);
+            }
+
+            void render(StringBuilder sb, String name, String labels) {
+                for (double q : QUANTILES) {
+                    sb.append(name).append('{').append(labels).append("quantile=\"").append(q).append("\"} ")
+                      .append(quantile(q) / 1e6).append('\n');
+                }
+                String plain = labels.isEmpty() ? "" : "{" + labels.substring(0, labels.length() - 1) + "}";
+                sb.append(name).append("_sum").append(plain).append(' ').append(sum.sum() / 1e6).append('\n');
+                sb.append(name).append("_count").append(plain).append(' ').append(count.sum()).append('\n');
+            }
+        }
+    }
+
+    /* ========== 目录列表渲染 ========== */
+    /**
+     * 预编码的目录列表渲染器：页面头尾在构造时编码为 UTF-8 字节，
+     * 每行直接写入线程私有的可复用缓冲区，大小和时间只用整数运算格式化。
+     */
+    static class ListingRenderer {
+        private static final String[] SORTS = {"name", "size", "date"};
+        private static final byte[] PARENT_ROW = utf8("<tr><td><a href=\"../\">../</a></td><td>-</td><td>-</td></tr>");
+        private static final byte[] ROW_START = utf8("<tr><td><a href=\"");
+        private static final byte[] DIR_ICON = utf8("\"><img src=\"/Resources/img/folder.png\" alt=\"\" class=\"icon\">");
+        private static final byte[] FILE_ICON = utf8("\"><img src=\"/Resources/img/file.png\" alt=\"\" class=\"icon\">");
+        private static final byte[] NAME_END = utf8("</a></td><td>");
+        private static final byte[] CELL_SEP = utf8("</td><td>");
+        private static final byte[] ACTIONS = utf8("</td><td class=\"actions\">");
+        private static final byte[] DOWNLOAD_START = utf8("<a href=\"");
+        private static final byte[] DOWNLOAD_END = utf8("\" class=\"btn btn-primary\">下载</a><button class=\"btn btn-success\" onclick=\"copyLink('");
+        private static final byte[] COPY_END = utf8("')\">复制链接</button>");
+        private static final byte[] HASH_START = utf8("<a class=\"btn\" href=\"");
+        private static final byte[] HASH_TITLE = utf8(".sha256\" title=\"SHA-256: ");
+        private static final byte[] HASH_END = utf8("\">SHA-256</a>");
+        private static final byte[] ROW_END = utf8("</td></tr>");
+        private static final byte[] TABLE_END = utf8("</table>");
+        private static final byte[] PAGE_END = utf8("</div></body></html>");
+        private static final byte[] PAGER_START = utf8("<div class=\"pager\">");
+        private static final byte[] PAGER_LINK = utf8("<a class=\"btn\" href=\"?sort=");
+        private static final byte[] PAGER_ORDER = utf8("&amp;order=");
+        private static final byte[] PAGER_LIMIT = utf8("&amp;limit=");
+        private static final byte[] PAGER_OFFSET = utf8("&amp;offset=");
+        private static final byte[] ZIP_END = utf8("?zip=1\" class=\"btn btn-primary\">打包下载</a>");
+        private static final byte[] SEARCH_ACTIONS = utf8("</a></td><td class=\"actions\">");
+        private static final byte[] SEARCH_PAGER_LINK = utf8("<a class=\"btn\" href=\"?q=");
+        private static final byte[] PREV_END = utf8("\">上一页</a>");
+        private static final byte[] NEXT_END = utf8("\">下一页</a>");
+        private static final byte[] PAGER_END = utf8("</div>");
+        private static final byte[] SIZE_UNITS = utf8("KMGTPE");
+
+        private static final ThreadLocal<ByteSink> SINKS = ThreadLocal.withInitial(ByteSink::new);
+
+        private final byte[] headStart;  // <title> 之前（含网站名）
+        private final byte[] headEnd;    // </title> 到 <h1> 网站名
+        private final byte[][] tableHeads = new byte[SORTS.length * 2][];  // 各排序方式下的表头
+        private final String searchPath;  // 搜索接口路径，null 为不显示搜索框
+        private final boolean zip;  // 是否显示打包下载按钮
+        private final byte[] searchHeadStart;  // 搜索结果页 </h1> 到搜索框的值之前
+        private final byte[] searchHeadEnd;    // 搜索框的值之后到表头
+        private final TimeZone zone = TimeZone.getDefault();
+
+        ListingRenderer(String siteName, String backgroundImage, String searchPath, boolean zip) {
+            this.searchPath = searchPath;
+            this.zip = zip;
+            StringBuilder sb = new StringBuilder(4096);
+            sb.append("<!DOCTYPE html><html><head><meta charset='UTF-8'><title>").append(siteName).append(" ");
+            headStart = utf8(sb.toString());
+
+            sb.setLength(0);
+            sb.append("</title>")
+              .append("<style>body{font-family:'Segoe UI',Arial,sans-serif;margin:0;padding:40px;background-color:#f5f5f5;")
+              .append("background-image:url('").append(backgroundImage).append("');")
+              .append("background-size:cover;background-repeat:no-repeat;background-attachment:fixed;overflow:hidden;}")
+              .append(".container{background-color:rgba(255,255,255,0.9);padding:20px;border-radius:8px;box-shadow:0 2px 10px rgba(0,0,0,0.1);")
+              .append("max-width:1200px;margin:0 auto;max-height:85vh;overflow-y:auto;height:85vh;}")
+              .append("h1{color:#333;margin-top:0;font-size:24px;}")
+              .append("table{border-collapse:collapse;width:100%;margin-top:20px;}")
+              .append("th,td{padding:12px 15px;text-align:left;border-bottom:1px solid #eee;}")
+              .append("th{background-color:#f8f9fa;font-weight:600;color:#555;}")
+              .append("tr:hover{background-color:#f8f9fa;}")
+              .append("a{color:#0066cc;text-decoration:none;display:inline-flex;align-items:center;}")
+              .append("a:hover{text-decoration:underline;}")
+              .append(".icon{width:16px;height:16px;margin-right:8px;}")
+              .append(".btn{display:inline-block;padding:6px 12px;margin:0 5px;font-size:14px;font-weight:400;line-height:1.42857143;")
+              .append("text-align:center;white-space:nowrap;vertical-align:middle;cursor:pointer;border:1px solid transparent;")
+              .append("border-radius:4px;background-color:#f0f0f0;color:#333;text-decoration:none;}")
+              .append(".btn:hover{background-color:#e0e0e0;}")
+              .append(".btn-primary{background-color:#007bff;color:#fff;}")
+              .append(".btn-primary:hover{background-color:#0056b3;}")
+              .append(".btn-success{background-color:#28a745;color:#fff;}")
+              .append(".btn-success:hover{background-color:#1e7e34;}")
+              .append(".sortable{cursor:pointer;text-decoration:underline;}")
+              .append(".actions{white-space:nowrap;}")
+              .append(".pager{margin-top:15px;color:#555;}")
+              .append(".toolbar{margin-top:10px;}")
+              .append(".search{display:inline-block;margin-right:5px;}")
+              .append(".search input{padding:6px 10px;border:1px solid #ccc;border-radius:4px;width:260px;font-size:14px;}")
+              .append("</style>")
+              .append("<script>")
+              .append("function toggleSort(field) {")
+              .append("  const url = new URL(window.location.href);")
+              .append("  const params = new URLSearchParams(url.search);")
+              .append("  if (params.get('sort') === field) {")
+              .append("    params.set('order', params.get('order') === 'asc' ? 'desc' : 'asc');")
+              .append("  } else {")
+              .append("    params.set('sort', field);")
+              .append("    params.set('order', 'asc');")
+              .append("  }")
+              .append("  params.delete('offset');")
+              .append("  url.search = params.toString();")
+              .append("  window.location.href = url.toString();")
+              .append("}")
+              .append("function copyLink(path) {")
+              .append("  const fullUrl = window.location.origin + path;")
+              .append("  if (navigator.clipboard && window.isSecureContext) {")
+              .append("    navigator.clipboard.writeText(fullUrl).then(() => {")
+              .append("      alert('链接已复制到剪贴板');")
+              .append("    }).catch(err => {")
+              .append("      console.error('复制失败: ', err);")
+              .append("      fallbackCopyTextToClipboard(fullUrl);")
+              .append("    });")
+              .append("  } else {")
+              .append("    fallbackCopyTextToClipboard(fullUrl);")
+              .append("  }")
+              .append("}")
+              .append("function fallbackCopyTextToClipboard(text) {")
+              .append("  const textArea = document.createElement('textarea');")
+              .append("  textArea.value = text;")
+              .append("  textArea.style.position = 'fixed';")
+              .append("  textArea.style.left = '-999999px';")
+              .append("  textArea.style.top = '-999999px';")
+              .append("  document.body.appendChild(textArea);")
+              .append("  textArea.focus();")
+              .append("  textArea.select();")
+              .append("  try {")
+              .append("    const successful = document.execCommand('copy');")
+              .append("    if (successful) {")
+              .append("      alert('链接已复制到剪贴板');")
+              .append("    } else {")
+              .append("      console.error('复制失败');")
+              .append("    }")
+              .append("  } catch (err) {")
+              .append("    console.error('复制失败: ', err);")
+              .append("  }")
+              .append("  document.body.removeChild(textArea);")
+              .append("}")
+              .append("</script>")
+              .append("</head><body><div class=\"container\"><h1>").append(siteName).append(" ");
+            headEnd = utf8(sb.toString());
+
+            for (int i = 0; i < SORTS.length; i++) {
+                for (int desc = 0; desc < 2; desc++) {
+                    String arrow = " (" + (desc == 0 ? "↑" : "↓") + ")";
+                    tableHeads[i * 2 + desc] = utf8("</h1>" + toolbar() + "<table><tr>"
+                            + "<th onclick=\"toggleSort('name')\" class=\"sortable\">文件名" + (i == 0 ? arrow : "") + "</th>"
+                            + "<th onclick=\"toggleSort('size')\" class=\"sortable\">大小" + (i == 1 ? arrow : "") + "</th>"
+                            + "<th onclick=\"toggleSort('date')\" class=\"sortable\">更新日期" + (i == 2 ? arrow : "") + "</th>"
+                            + "<th>操作</th></tr>");
+                }
+            }
+
+            String form = searchForm(searchPath == null ? "/search" : searchPath);
+            int value = form.indexOf("value=\"") + 7;
+            searchHeadStart = utf8("</h1><div class=\"toolbar\">" + form.substring(0, value));
+            searchHeadEnd = utf8(form.substring(value) + "</div><table><tr><th>路径</th><th>操作</th></tr>");
+        }
+
+        /** 列表页顶部的工具栏：搜索框和当前目录的打包下载 */
+        private String toolbar() {
+            if (searchPath == null && !zip) return "";
+            return "<div class=\"toolbar\">" + searchForm(searchPath)
+                    + (zip ? "<a class=\"btn btn-primary\" href=\"?zip=1\">打包下载当前目录</a>" : "") + "</div>";
+        }
+
+        /** 搜索框 */
+        private static String searchForm(String searchPath) {
+            if (searchPath == null) return "";
+            return "<form class=\"search\" action=\"" + searchPath + "\" method=\"get\">"
+                    + "<input type=\"text\" name=\"q\" placeholder=\"搜索文件名\" value=\"\">"
+                    + "<button type=\"submit\" class=\"btn btn-primary\">搜索</button></form>";
+        }
+
+        private static int sortIndex(String sortBy) {
+            for (int i = 0; i < SORTS.length; i++) {
+                if (SORTS[i].equals(sortBy)) return i;
+            }
+            return 0;
+        }
+
+        private static byte[] utf8(String s) {
+            return s.getBytes(StandardCharsets.UTF_8);
+        }
+
+        void render(OutputStream out, boolean isRoot, String uriPath, LoggingFileHandler.PageSelector page,
+                    String sortBy, String order) throws IOException {
+            render(out, isRoot, uriPath, page, sortBy, order, null);
+        }
+
+        /** sha256 返回文件已算好的摘要，为 null 或返回 null 时不显示 */
+        void render(OutputStream out, boolean isRoot, String uriPath, LoggingFileHandler.PageSelector page,
+                    String sortBy, String order, Function<LoggingFileHandler.FileItem, byte[]> sha256) throws IOException {
+            ByteSink sink = SINKS.get();
+            sink.begin(out);
+            try {
+                sink.write(headStart);
+                sink.writeText(uriPath, false);
+                sink.write(headEnd);
+                sink.writeText(uriPath, false);
+                sink.write(tableHeads[sortIndex(sortBy) * 2 + ("desc".equals(order) ? 1 : 0)]);
+
+                // 父目录链接
+                if (!isRoot) sink.write(PARENT_ROW);
+
+                // 文件列表
+                for (LoggingFileHandler.FileItem item : page.page()) {
+                    writeRow(sink, uriPath, item, sha256 == null ? null : sha256.apply(item));
+                    sink.flushIfFull();
+                }
+                sink.write(TABLE_END);
+
+                // 分页导航
+                if (page.total > page.limit || page.offset > 0) {
+                    int shownEnd = (int) Math.min((long) page.offset + page.limit, page.total);
+                    sink.write(PAGER_START);
+                    if (page.offset > 0) {
+                        writePageLink(sink, sortBy, order, page.limit, Math.max(0, page.offset - page.limit));
+                        sink.write(PREV_END);
+                    }
+                    sink.writeText("第 ", false);
+                    sink.writeLong(Math.min(page.offset + 1, page.total));
+                    sink.writeText(" - ", false);
+                    sink.writeLong(shownEnd);
+                    sink.writeText(" 项，共 ", false);
+                    sink.writeLong(page.total);
+                    sink.writeText(" 项", false);
+                    if (shownEnd < page.total) {
+                        writePageLink(sink, sortBy, order, page.limit, shownEnd);
+                        sink.write(NEXT_END);
+                    }
+                    sink.write(PAGER_END);
+                }
+                sink.write(PAGE_END);
+                sink.flush();
+            } finally {
+                sink.end();
+            }
+        }
+
+        /** 搜索结果页：每行一个路径，分页参数与目录列表一致 */
+        void renderSearch(OutputStream out, String query, SearchIndex.Result result, int offset, int limit,
+                          boolean building) throws IOException {
+            ByteSink sink = SINKS.get();
+            sink.begin(out);
+            try {
+                sink.write(headStart);
+                sink.writeText("搜索: " + query, false);
+                sink.write(headEnd);
+                sink.writeText("搜索: " + query, false);
+                sink.write(searchHeadStart);
+                sink.writeText(query, false);
+                sink.write(searchHeadEnd);
+                for (String path : result.paths) {
+                    boolean isDir = path.endsWith("/");
+                    sink.write(ROW_START);
+                    sink.writeText(path, false);
+                    sink.write(isDir ? DIR_ICON : FILE_ICON);
+                    sink.writeText(path, false);
+                    sink.write(SEARCH_ACTIONS);
+                    if (!isDir) {
+                        sink.write(DOWNLOAD_START);
+                        sink.writeText(path, false);
+                        sink.write(DOWNLOAD_END);
+                        sink.writeText(path, true);
+                        sink.write(COPY_END);
+                    }
+                    sink.write(ROW_END);
+                    sink.flushIfFull();
+                }
+                sink.write(TABLE_END);
+
+                sink.write(PAGER_START);
+                String encoded = URLEncoder.encode(query, StandardCharsets.UTF_8);
+                int shownEnd = offset + result.paths.size();
+                if (offset > 0) {
+                    writeSearchLink(sink, encoded, limit, Math.max(0, offset - limit));
+                    sink.write(PREV_END);
+                }
+                if (result.total == 0) {
+                    sink.writeText("没有找到匹配的文件", false);
+                } else {
+                    sink.writeText("第 ", false);
+                    sink.writeLong(Math.min(offset + 1, result.total));
+                    sink.writeText(" - ", false);
+                    sink.writeLong(shownEnd);
+                    sink.writeText(" 项，共 ", false);
+                    sink.writeLong(result.total);
+                    sink.writeText(result.truncated ? "+ 项（只列出排名最前的 " + SearchIndex.MAX_MATCHES + " 个）" : " 项", false);
+                }
+                if (shownEnd < result.total) {
+                    writeSearchLink(sink, encoded, limit, shownEnd);
+                    sink.write(NEXT_END);
+                }
+                if (building) sink.writeText("（索引建立中，结果可能不完整）", false);
+                sink.write(PAGER_END);
+                sink.write(PAGE_END);
+                sink.flush();
+            } finally {
+                sink.end();
+            }
+        }
+
+        private static void writeSearchLink(ByteSink sink, String encodedQuery, int limit, int offset) {
+            sink.write(SEARCH_PAGER_LINK);
+            sink.writeText(encodedQuery, false);
+            sink.write(PAGER_LIMIT);
+            sink.writeLong(limit);
+            sink.write(PAGER_OFFSET);
+            sink.writeLong(offset);
+        }
+
+        private void writeRow(ByteSink sink, String uriPath, LoggingFileHandler.FileItem item, byte[] sha256) {
+            sink.write(ROW_START);
+            writeLink(sink, item);
+            sink.write(item.isDirectory ? DIR_ICON : FILE_ICON);
+            writeLink(sink, item);
+            sink.write(NAME_END);
+            if (item.isDirectory) {
+                sink.writeByte('-');
+            } else {
+                writeSize(sink, item.size);
+            }
+            sink.write(CELL_SEP);
+            writeDate(sink, item.lastModified);
+            sink.write(ACTIONS);
+            if (item.isDirectory && zip) {
+                sink.write(DOWNLOAD_START);
+                writeLink(sink, item);
+                sink.write(ZIP_END);
+            } else if (!item.isDirectory) {
+                sink.write(DOWNLOAD_START);
+                writeLink(sink, item);
+                sink.write(DOWNLOAD_END);
+                sink.writeText(uriPath, true);
+                sink.writeText(item.name, true);
+                sink.write(COPY_END);
+                if (sha256 != null) {
+                    sink.write(HASH_START);
+                    writeLink(sink, item);
+                    sink.write(HASH_TITLE);
+                    sink.writeText(Checksums.hex(sha256), false);
+                    sink.write(HASH_END);
+                }
+            }
+            sink.write(ROW_END);
+        }
+
+        private static void writeLink(ByteSink sink, LoggingFileHandler.FileItem item) {
+            sink.writeText(item.name, false);
+            if (item.isDirectory) sink.writeByte('/');
+        }
+
+        private static void writePageLink(ByteSink sink, String sortBy, String order, int limit, int offset) {
+            sink.write(PAGER_LINK);
+            sink.writeText(sortBy, false);
+            sink.write(PAGER_ORDER);
+            sink.writeText(order, false);
+            sink.write(PAGER_LIMIT);
+            sink.writeLong(limit);
+            sink.write(PAGER_OFFSET);
+            sink.writeLong(offset);
+        }
+
+        /** 与 "#,###" 格式一致的 1024 进制大小（四舍六入五成双），只用整数运算 */
+        static void writeSize(ByteSink sink, long bytes) {
+            if (bytes < 1024) {
+                sink.writeLong(bytes);
+                sink.writeText(" B", false);
+                return;
+            }
+            int exp = (63 - Long.numberOfLeadingZeros(bytes)) / 10;
+            int shift = exp * 10;
+            long q = bytes >>> shift;
+            long r = bytes & ((1L << shift) - 1);
+            long half = 1L << (shift - 1);
+            if (r > half || (r == half && (q & 1) == 1)) q++;
+            sink.writeGrouped(q);
+            sink.writeByte(' ');
+            sink.writeByte(SIZE_UNITS[exp - 1]);
+            sink.writeByte('B');
+        }
+
+        /** 按 yyyy.M.d HH:mm:ss 输出本地时间，只用整数运算 */
+        void writeDate(ByteSink sink, long millis) {
+            long local = Math.floorDiv(millis + zone.getOffset(millis), 1000L);
+            long days = Math.floorDiv(local, 86400L);
+            int secs = (int) Math.floorMod(local, 86400L);
+
+            // 公历日期换算（Howard Hinnant 的 civil_from_days 算法）
+            long z = days + 719468;
+            long era = Math.floorDiv(z, 146097);
+            long doe = z - era * 146097;
+            long yoe = (doe - doe / 1460 + doe / 36524 - doe / 146096) / 365;
+            long doy = doe - (365 * yoe + yoe / 4 - yoe / 100);
+            long mp = (5 * doy + 2) / 153;
+            long day = doy - (153 * mp + 2) / 5 + 1;
+            long month = mp < 10 ? mp + 3 : mp - 9;
+            long year = yoe + era * 400 + (month <= 2 ? 1 : 0);
+
+            sink.writeLong(year);
+            sink.writeByte('.');
+            sink.writeLong(month);
+            sink.writeByte('.');
+            sink.writeLong(day);
+            sink.writeByte(' ');
+            sink.writeTwoDigits(secs / 3600);
+            sink.writeByte(':');
+            sink.writeTwoDigits(secs / 60 % 60);
+            sink.writeByte(':');
+            sink.writeTwoDigits(secs % 60);
+        }
+
+        /** 可复用的字节缓冲区，超过阈值时把已写内容刷到输出流 */
+        static final class ByteSink {
+            private static final int FLUSH_AT = 16 * 1024;
+            private static final int MAX_RETAINED = 256 * 1024;  // 超过该大小的缓冲区用完即丢弃
+            private byte[] buf = new byte[FLUSH_AT * 2];
+            private int len;
+            private OutputStream out;
+
+            void begin(OutputStream out) {
+                this.out = out;
+                this.len = 0;
+            }
+
+            void end() {
+                out = null;
+                len = 0;
+                if (buf.length > MAX_RETAINED) buf = new byte[FLUSH_AT * 2];
+            }
+
+            void flushIfFull() throws IOException {
+                if (len >= FLUSH_AT) flush();
+            }
+
+            void flush() throws IOException {
+                if (len > 0) {
+                    out.write(buf, 0, len);
+                    len = 0;
+                }
+            }
+
+            private void ensure(int n) {
+                if (len + n > buf.length) buf = Arrays.copyOf(buf, Math.max(buf.length * 2, len + n));
+            }
+
+            void write(byte[] b) {
+                ensure(b.length);
+                System.arraycopy(b, 0, buf, len, b.length);
+                len += b.length;
+            }
+
+            void writeByte(int b) {
+                ensure(1);
+                buf[len++] = (byte) b;
+            }
+
+            void writeTwoDigits(int v) {
+                ensure(2);
+                buf[len++] = (byte) ('0' + v / 10);
+                buf[len++] = (byte) ('0' + v % 10);
+            }
+
+            void writeLong(long v) {
+                if (v < 0) {
+                    writeByte('-');
+                    v = -v;
+                }
+                ensure(20);
+                int start = len;
+                do {
+                    buf[len++] = (byte) ('0' + v % 10);
+                    v /= 10;
+                } while (v > 0);
+                reverse(start);
+            }
+
+            /** 带千位分隔符的整数 */
+            void writeGrouped(long v) {
+                ensure(27);
+                int start = len;
+                int digits = 0;
+                do {
+                    if (digits > 0 && digits % 3 == 0) buf[len++] = ',';
+                    buf[len++] = (byte) ('0' + v % 10);
+                    v /= 10;
+                    digits++;
+                } while (v > 0);
+                reverse(start);
+            }
+
+            private void reverse(int start) {
+                for (int i = start, j = len - 1; i < j; i++, j--) {
+                    byte t = buf[i];
+                    buf[i] = buf[j];
+                    buf[j] = t;
+                }
+            }
+
+            /**
+             * 以 UTF-8 写入文本并做 HTML 转义；js 为 true 时额外转义 JS 单引号字符串中的 \ 和 '
+             */
+            void writeText(CharSequence s, boolean js) {
+                int n = s.length();
+                ensure(n);
+                for (int i = 0; i < n; i++) {
+                    char c = s.charAt(i);
+                    if (c < 0x80) {
+                        switch (c) {
+                            case '&': write(AMP); break;
+                            case '<': write(LT); break;
+                            case '>': write(GT); break;
+                            case '"': write(QUOT); break;
+                            case '\'': write(js ? JS_APOS : APOS); break;
+                            case '\\':
+                                if (js) writeByte('\\');
+                                writeByte('\\');
+                                break;
+                            default: writeByte(c);
+                        }
+                    } else if (c < 0x800) {
+                        ensure(2);
+                        buf[len++] = (byte) (0xC0 | (c >> 6));
+                        buf[len++] = (byte) (0x80 | (c & 0x3F));
+                    } else if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(s.charAt(i + 1))) {
+                        int cp = Character.toCodePoint(c, s.charAt(++i));
+                        ensure(4);
+                        buf[len++] = (byte) (0xF0 | (cp >> 18));
+                        buf[len++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+                        buf[len++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+                        buf[len++] = (byte) (0x80 | (cp & 0x3F));
+                    } else if (Character.isSurrogate(c)) {
+                        writeByte('?');  // 不成对的代理字符
+                    } else {
+                        ensure(3);
+                        buf[len++] = (byte) (0xE0 | (c >> 12));
+                        buf[len++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                        buf[len++] = (byte) (0x80 | (c & 0x3F));
+                    }
+                }
+            }
+
+            private static final byte[] AMP = utf8("&amp;");
+            private static final byte[] LT = utf8("&lt;");
+            private static final byte[] GT = utf8("&gt;");
+            private static final byte[] QUOT = utf8("&quot;");
+            private static final byte[] APOS = utf8("&#39;");
+            private static final byte[] JS_APOS = utf8("\\'");
+        }
+    }
+
+    /* ========== 带日志的文件处理器 ========== */
+        static class LoggingFileHandler implements RequestHandler {
+            private final Path root;
+            private final String siteName;  // 存储网站名称
+            private final String backgroundImage;  // 存储背景图片路径
+            private final ListingCache listingCache;  // 目录列表缓存
+            private final int pageSize;  // 目录列表每页条目数
+            private final Map<String, String> cachePolicies;  // 路径前缀 -> Cache-Control
+            private final Compression compression;  // 响应压缩策略
+            private final AccessLog accessLog;  // 异步访问日志
+            private final Metrics metrics = new Metrics();  // 监控指标
+            private final FileCache fileCache;  // 热点文件缓存
+            private final ListingRenderer renderer;  // 目录列表渲染器
+            private final String metricsPath;  // 监控指标接口路径，null 为禁用
+            private final boolean countsConnections;  // 引擎是否报告连接的建立与关闭
+            private final String searchPath;  // 文件名搜索接口路径，null 为禁用
+            private final SearchIndex searchIndex;  // 文件名搜索索引
+            private final ZipStreamer zipStreamer;  // 目录打包下载
+            private final Qos qos;  // 限速与并发限制
+            private final EdgeCache edgeCache;  // 边缘模式的上游缓存
+            private final Checksums checksums;  // 后台计算的文件校验和
+            private static final int MAX_RANGES = 16;  // 单个请求允许的最大分段数
+
+        LoggingFileHandler(Path root, Config cfg) throws IOException {
+            this.root = root;
+            this.siteName = cfg.siteName;  // 从配置初始化网站名称
+            this.backgroundImage = cfg.backgroundImage;  // 从配置初始化背景图片路径
+            this.listingCache = new ListingCache(cfg.listingCacheMB * 1024L * 1024L);
+            this.pageSize = Math.max(1, cfg.pageSize);
+            this.cachePolicies = cfg.cachePolicies;
+            this.compression = new Compression(cfg);
+            this.accessLog = new AccessLog(cfg);
+            this.fileCache = new FileCache(cfg.fileCacheMB * 1024L * 1024L, cfg.fileCacheMaxKB * 1024L);
+            this.metricsPath = cfg.metricsPath == null || cfg.metricsPath.isEmpty() ? null : cfg.metricsPath;
+            this.countsConnections = "nio".equals(cfg.engine);
+            this.searchPath = cfg.searchPath == null || cfg.searchPath.isEmpty() ? null : cfg.searchPath;
+            this.zipStreamer = new ZipStreamer(cfg);
+            this.qos = new Qos(cfg);
+            this.edgeCache = new EdgeCache(cfg);
+            this.checksums = new Checksums(cfg, root);
+            checksums.start();
+            this.renderer = new ListingRenderer(cfg.siteName, cfg.backgroundImage, searchPath, zipStreamer.enabled);
+            this.searchIndex = searchPath == null ? null : new SearchIndex(root);
+            if (searchIndex != null) searchIndex.start();
+        }
+
+        @Override
+        public void connectionOpened() {
+            metrics.connections.increment();
+        }
+
+        @Override
+        public void connectionClosed() {
+            metrics.connections.decrement();
+        }
+
+        @Override
+        public void handle(Exchange ex) throws IOException {
+            long start = System.nanoTime();
+            String clientIp = ex.getRemoteAddress().getAddress().getHostAddress();
+            String uriPath = ex.getRequestURI().getPath();
+            Qos.Client client = qos.client(clientIp);
+            // 统计实际发送的字节数，需要时按带宽限速
+            OutputStream body = ex.getResponseBody();
+            if (qos.shaping()) body = new Qos.ThrottledOutputStream(body, qos, client);
+            ex.setResponseBody(new CountingOutputStream(body));
+
+            // 监控指标接口
+            if (metricsPath != null && uriPath.equals(metricsPath)) {
+                serveMetrics(ex);
+                return;
+            }
+
+            /* 实际业务处理 */
+            metrics.inflight.increment();
+            try {
+                // 超过该 IP 的请求速率
+                long retryAfter = qos.admit(client);
+                if (retryAfter > 0) {
+                    serve429(ex, retryAfter);
+                    log(ex, Metrics.ERROR, clientIp, uriPath, 429, start);
+                    return;
+                }
+
+                // 线程池已饱和：直接拒绝
+                if (WorkerPool.isShedding()) {
+                    serve503(ex);
+                    log(ex, Metrics.ERROR, clientIp, uriPath, 503, start);
+                    return;
+                }
+
+                // 文件名搜索
+                if (searchPath != null && uriPath.equals(searchPath)) {
+                    int status = serveSearch(ex);
+                    log(ex, Metrics.LISTING, clientIp, uriPath, status, start);
+                    return;
+                }
+
+                // 按路径前缀设置缓存策略
+                String cacheControl = cachePolicy(uriPath);
+                if (cacheControl != null) {
+                    ex.getResponseHeaders().set("Cache-Control", cacheControl);
+                }
+
+                // 处理静态资源请求
+                if (uriPath.startsWith("/Resources/")) {
+                    Path resourcePath = Paths.get(".").resolve(uriPath.substring(1)).normalize();
+                    FileCache.Entry cached = cachedFor(ex, resourcePath);
+                    if (cached != null) {
+                        int status = serveCached(ex, cached);
+                        log(ex, Metrics.RESOURCE, clientIp, uriPath, status, start);
+                        return;
+                    }
+                    if (Files.isRegularFile(resourcePath)) {
+                        int status = serveFile(ex, resourcePath, null);
+                        log(ex, Metrics.RESOURCE, clientIp, uriPath, status, start);
+                        return;
+                    } else {
+                        serve404(ex);
+                        log(ex, Metrics.ERROR, clientIp, uriPath, 404, start);
+                        return;
+                    }
+                }
+                
+                Path target = root.resolve("." + uriPath).normalize();
+                if (!target.startsWith(root)) {   // 防穿越
+                    serve404(ex);
+                    log(ex, Metrics.ERROR, clientIp, uriPath, 404, start);
+                    return;
+                }
+
+                // 虚拟的校验和文件：xxx.sha256 对应本地文件 xxx
+                if (checksums.enabled && uriPath.endsWith(".sha256") && !Files.exists(target)) {
+                    Path file = target.resolveSibling(target.getFileName().toString().replaceAll("\\.sha256$", ""));
+                    if (Files.isRegularFile(file)) {
+                        int status = serveChecksum(ex, file);
+                        log(ex, Metrics.FILE, clientIp, uriPath, status, start);
+                        return;
+                    }
+                }
+
+                // 边缘模式：目录列表来自上游，本地没有的文件从上游拉取
+                if (edgeCache.enabled && !Files.exists(target)) {
+                    int status = serveEdge(ex, uriPath, client);
+                    log(ex, uriPath.endsWith("/") && !wantsZip(ex) ? Metrics.LISTING : Metrics.FILE, clientIp, uriPath, status, start);
+                    return;
+                }
+
+                FileCache.Entry cached = cachedFor(ex, target);
+                if (cached != null) {
+                    int status = serveCached(ex, cached);
+                    log(ex, Metrics.FILE, clientIp, uriPath, status, start);
+                } else if (Files.isDirectory(target) && zipStreamer.enabled && wantsZip(ex)) {
+                    int status = serveZip(ex, target, client);
+                    log(ex, Metrics.FILE, clientIp, uriPath, status, start);
+                } else if (Files.isDirectory(target)) {
+                    int status = listDirectory(ex, target, uriPath);
+                    log(ex, Metrics.LISTING, clientIp, uriPath, status, start);
+                } else if (Files.isRegularFile(target)) {
+                    int status = serveFile(ex, target, client);
+                    log(ex, Metrics.FILE, clientIp, uriPath, status, start);
+                } else {
+                    serve404(ex);
+                    log(ex, Metrics.ERROR, clientIp, uriPath, 404, start);
+                }
+            } catch (Exception e) {
+                serve500(ex);
+                // 忽略对外部URL的请求日志
+                if (uriPath.contains(backgroundImage)) {
+                    return;
+                }
+                log(ex, Metrics.ERROR, clientIp, uriPath, 500, start);
+            } finally {
+                metrics.inflight.decrement();
+            }
+        }
+
+        /* ---------- 边缘模式 ---------- */
+        private int serveEdge(Exchange ex, String uriPath, Qos.Client client) throws IOException {
+            String rawQuery = ex.getRequestURI().getRawQuery();
+            if (uriPath.endsWith("/")) {
+                return wantsZip(ex) ? serveUpstream(ex, uriPath, rawQuery, client) : serveEdgeListing(ex, uriPath, rawQuery);
+            }
+            Path cached = edgeCache.cached(uriPath);
+            if (cached != null) return serveFile(ex, cached, client);
+
+            // 未命中时 HEAD 只向上游要响应头；Range 原样转发给上游，同时在后台拉取整个文件，之后的 Range 由本地缓存处理
+            boolean head = "HEAD".equals(ex.getRequestMethod());
+            if (head || ex.getRequestHeaders().getFirst("Range") != null) {
+                if (!head) {
+                    try {
+                        edgeCache.fetch(uriPath);
+                    } catch (IOException ignored) {
+                        // 缓存填充失败不影响本次转发
+                    }
+                }
+                return serveUpstream(ex, uriPath, rawQuery, client);
+            }
+
+            EdgeCache.Fetch f = edgeCache.fetch(uriPath);
+            if (f == null) {
+                serve404(ex);
+                return 404;
+            }
+            try {
+                f.awaitHead();
+            } catch (IOException e) {
+                // 上游不可达时仍用本地的旧副本
+                if (f.ifModifiedSince > 0 && Files.isRegularFile(f.target)) return serveFile(ex, f.target, client);
+                serve502(ex);
+                return 502;
+            }
+            if (f.notModified || f.status >= 500 && f.ifModifiedSince > 0 && Files.isRegularFile(f.target)) {
+                return serveFile(ex, f.target, client);
+            }
+            if (f.body != null) {
+                // 上游的错误页或目录页原样转发
+                ex.getResponseHeaders().set("Content-Type", f.contentType != null ? f.contentType : "text/html; charset=UTF-8");
+                ex.sendResponseHeaders(f.status, f.body.length == 0 ? -1 : f.body.length);
+                try (OutputStream os = ex.getResponseBody()) { os.write(f.body); }
+                return f.status;
+            }
+            if (f.completed()) return serveFile(ex, f.target, client);
+
+            // 边下载边发送：跟随下载线程已写入临时文件的长度
+            if (!qos.beginTransfer(client)) {
+                serve429(ex, 1);
+                return 429;
+            }
+            metrics.activeTransfers.increment();
+            try {
+                HeaderMap h = ex.getResponseHeaders();
+                h.set("Content-Type", f.contentType != null ? f.contentType : "application/octet-stream");
+                if (f.lastModified > 0) h.set("Last-Modified", formatHttpDate(f.lastModified));
+                ex.sendResponseHeaders(200, f.length < 0 ? 0 : f.length == 0 ? -1 : f.length);
+                try (FileChannel ch = openFetched(f); OutputStream os = ex.getResponseBody()) {
+                    for (long pos = 0, end; (end = f.await(pos)) > pos; pos = end) {
+                        transfer(ch, pos, end - pos, os);
+                    }
+                }
+                return 200;
+            } finally {
+                metrics.activeTransfers.decrement();
+                qos.endTransfer(client);
+            }
+        }
+
+        /** 打开下载中的临时文件；下载刚好完成并移入缓存时改为打开缓存文件 */
+        private static FileChannel openFetched(EdgeCache.Fetch f) throws IOException {
+            try {
+                return FileChannel.open(f.temp, StandardOpenOption.READ);
+            } catch (NoSuchFileException e) {
+                return FileChannel.open(f.target, StandardOpenOption.READ);
+            }
+        }
+
+        private int serveEdgeListing(Exchange ex, String uriPath, String rawQuery) throws IOException {
+            EdgeCache.Listing l;
+            try {
+                l = edgeCache.listing(uriPath, rawQuery);
+            } catch (IOException e) {
+                serve502(ex);
+                return 502;
+            }
+            byte[] body = l.body;
+            HeaderMap h = ex.getResponseHeaders();
+            h.set("Content-Type", l.contentType);
+            h.set("Vary", "Accept-Encoding");
+            if (compression.enabled && body.length >= compression.minSize && compression.acceptsGzip(ex)) {
+                byte[] gz = l.gzipBody;
+                if (gz == null) edgeCache.gzipped(l, gz = Compression.gzip(body));
+                h.set("Content-Encoding", "gzip");
+                body = gz;
+            }
+            ex.sendResponseHeaders(l.status, body.length == 0 ? -1 : body.length);
+            try (OutputStream os = ex.getResponseBody()) { os.write(body); }
+            return l.status;
+        }
+
+        /** 不经缓存直接转发上游响应（目录打包下载、未命中时的 HEAD 与 Range 请求） */
+        private int serveUpstream(Exchange ex, String uriPath, String rawQuery, Qos.Client client) throws IOException {
+            boolean head = "HEAD".equals(ex.getRequestMethod());
+            HeaderMap req = ex.getRequestHeaders();
+            HttpResponse<InputStream> resp;
+            try {
+                resp = edgeCache.open(uriPath, rawQuery,
+                        "Range", head ? null : req.getFirst("Range"), "If-Range", head ? null : req.getFirst("If-Range"));
+            } catch (IOException e) {
+                serve502(ex);
+                return 502;
+            }
+            try (InputStream in = resp.body()) {
+                for (String name : new String[]{"Content-Type", "Content-Disposition", "Last-Modified", "Accept-Ranges", "Content-Range"}) {
+                    resp.headers().firstValue(name).ifPresent(v -> ex.getResponseHeaders().set(name, v));
+                }
+                long length = resp.headers().firstValueAsLong("Content-Length").orElse(-1);
+                if (head) {
+                    // 上游用 GET 请求（JDK 引擎的 HEAD 响应不带长度），只取响应头，不读取响应体就关闭
+                    ex.sendResponseHeaders(resp.statusCode(), length < 0 ? 0 : length == 0 ? -1 : length);
+                    ex.close();
+                    return resp.statusCode();
+                }
+                if (!qos.beginTransfer(client)) {
+                    serve429(ex, 1);
+                    return 429;
+                }
+                metrics.activeTransfers.increment();
+                try {
+                    ex.sendResponseHeaders(resp.statusCode(), length < 0 ? 0 : length == 0 ? -1 : length);
+                    try (OutputStream os = ex.getResponseBody()) {
+                        in.transferTo(os);
+                    }
+                    return resp.statusCode();
+                } finally {
+                    metrics.activeTransfers.decrement();
+                    qos.endTransfer(client);
+                }
+            }
+        }
+
+        /* ---------- 监控指标 ---------- */
+        private void serveMetrics(Exchange ex) throws IOException {
+            StringBuilder sb = new StringBuilder(4096);
+            metrics.render(sb);
+            if (countsConnections) {
+                Metrics.gauge(sb, "sfs_open_connections", "Client connections currently open.", metrics.connections.sum());
+            }
+            Metrics.gauge(sb, "sfs_listing_cache_entries", "Directories held in the listing cache.", listingCache.entryCount());
+            Metrics.gauge(sb, "sfs_listing_cache_bytes", "Estimated memory used by the listing cache.", listingCache.usedBytes());
+            Metrics.counter(sb, "sfs_file_cache_hits_total", "Requests answered from the hot file cache.", fileCache.hits.sum());
+            Metrics.counter(sb, "sfs_file_cache_misses_total", "Cacheable files read from disk into the hot file cache.", fileCache.misses.sum());
+            Metrics.gauge(sb, "sfs_file_cache_bytes", "Bytes held in the hot file cache.", fileCache.usedBytes());
+            if (checksums.enabled) {
+                Metrics.counter(sb, "sfs_checksum_files_total", "Files hashed by the background SHA-256 hasher.", checksums.hashedFiles.sum());
+                Metrics.counter(sb, "sfs_checksum_bytes_total", "Bytes read by the background SHA-256 hasher.", checksums.hashedBytes.sum());
+                Metrics.gauge(sb, "sfs_checksum_entries", "Files with a known SHA-256.", checksums.entryCount());
+                Metrics.gauge(sb, "sfs_checksum_queued", "Files waiting to be hashed.", checksums.queued());
+            }
+            if (edgeCache.enabled) {
+                Metrics.counter(sb, "sfs_edge_hits_total", "Requests answered from the edge disk cache.", edgeCache.hits.sum());
+                Metrics.counter(sb, "sfs_edge_misses_total", "Edge cache misses that started an upstream fetch.", edgeCache.misses.sum());
+                Metrics.counter(sb, "sfs_edge_collapsed_total", "Edge cache misses that joined an in-flight upstream fetch.", edgeCache.collapsed.sum());
+                Metrics.counter(sb, "sfs_edge_revalidated_total", "Cached files confirmed unchanged by the origin (304).", edgeCache.revalidated.sum());
+                Metrics.counter(sb, "sfs_edge_listing_hits_total", "Upstream listings answered from memory.", edgeCache.listingHits.sum());
+                Metrics.counter(sb, "sfs_edge_listing_misses_total", "Upstream listings fetched from the origin.", edgeCache.listingMisses.sum());
+                Metrics.counter(sb, "sfs_edge_upstream_bytes_total", "File bytes downloaded from the origin.", edgeCache.upstreamBytes.sum());
+                Metrics.counter(sb, "sfs_edge_upstream_errors_total", "Failed upstream requests.", edgeCache.upstreamErrors.sum());
+                Metrics.gauge(sb, "sfs_edge_cache_bytes", "Bytes held in the edge disk cache.", edgeCache.usedBytes());
+                Metrics.gauge(sb, "sfs_edge_listing_bytes", "Bytes held in the upstream listing cache.", edgeCache.listingBytes());
+            }
+            if (searchIndex != null) {
+                Metrics.gauge(sb, "sfs_search_index_entries", "Paths held in the filename search index.", searchIndex.entryCount());
+            }
+            Metrics.counter(sb, "sfs_qos_rejected_requests_total", "Requests rejected by the per-IP request rate limit.", qos.rejectedRequests.sum());
+            Metrics.counter(sb, "sfs_qos_rejected_transfers_total", "Downloads rejected by the per-IP concurrent transfer limit.", qos.rejectedTransfers.sum());
+            Metrics.counter(sb, "sfs_qos_throttled_responses_total", "Responses that had to wait for bandwidth tokens.", qos.throttledResponses.sum());
+            Metrics.counter(sb, "sfs_qos_throttled_seconds_total", "Time responses spent waiting for bandwidth tokens.", qos.throttledNanos.sum() / 1e9);
+            Metrics.gauge(sb, "sfs_qos_clients", "Client IPs with rate limiter state.", qos.clientCount());
+            Metrics.counter(sb, "sfs_access_log_dropped_total", "Access log records dropped because the queue was full.", accessLog.dropped());
+            byte[] bytes = sb.toString().getBytes(StandardCharsets.UTF_8);
+            ex.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            ex.getResponseHeaders().set("Cache-Control", "no-store");
+            ex.sendResponseHeaders(200, bytes.length);
+            try (OutputStream os = ex.getResponseBody()) { os.write(bytes); }
+        }
 
-                if (Files.isDirectory(target)) {
-                    listDirectory(ex, target, uriPath);
-                    log(clientIp, uriPath, 200, System.currentTimeMillis() - start);
-                } else if (Files.isRegularFile(target)) {
-                    serveFile(ex, target);
-                    log(clientIp, uriPath, 200, System.currentTimeMillis() - start);
-                } else {
-                    serve404(ex);
-                    log(clientIp, uriPath, 404, System.currentTimeMillis() - start);
-                }
-            } catch (Exception e) {
-                serve500(ex);
-                // 忽略对外部URL的请求日志
-                if (uriPath.contains(backgroundImage)) {
-                    return;
+        /* ---------- 文件名搜索 ---------- */
+        private int serveSearch(Exchange ex) throws IOException {
+            String q = "";
+            int offset = 0;
+            int limit = 50;
+            String query = ex.getRequestURI().getRawQuery();
+            if (query != null) {
+                // 逐个参数解码，查询词中可以包含 & 和 =
+                for (String param : query.split("&")) {
+                    int eq = param.indexOf('=');
+                    if (eq < 0) continue;
+                    String key = param.substring(0, eq);
+                    String value;
+                    try {
+                        value = URLDecoder.decode(param.substring(eq + 1), "UTF-8");
+                    } catch (IllegalArgumentException e) {
+                        continue;
+                    }
+                    if ("q".equals(key)) q = value;
+                    if ("offset".equals(key)) offset = parseInt(value, offset);
+                    if ("limit".equals(key)) limit = parseInt(value, limit);
                 }
-                log(clientIp, uriPath, 500, System.currentTimeMillis() - start);
             }
+            offset = Math.max(0, offset);
+            limit = Math.max(1, Math.min(limit, 500));
+
+            SearchIndex.Result result = searchIndex.search(q, offset, limit);
+            ByteArrayOutputStream bos = new ByteArrayOutputStream(8192);
+            renderer.renderSearch(bos, q, result, offset, limit, searchIndex.building());
+            byte[] html = bos.toByteArray();
+            ex.getResponseHeaders().set("Cache-Control", "no-cache");
+            ex.getResponseHeaders().set("Vary", "Accept-Encoding");
+            if (compression.enabled && html.length >= compression.minSize && compression.acceptsGzip(ex)) {
+                ex.getResponseHeaders().set("Content-Encoding", "gzip");
+                html = Compression.gzip(html);
+            }
+            sendHtml(ex, html);
+            return 200;
+        }
+
+        /* ---------- 目录打包下载 ---------- */
+        private static boolean wantsZip(Exchange ex) {
+            String query = ex.getRequestURI().getRawQuery();
+            return query != null && ("&" + query + "&").contains("&zip=1&");
+        }
+
+        private int serveZip(Exchange ex, Path dir, Qos.Client client) throws IOException {
+            if (!qos.beginTransfer(client)) {
+                serve429(ex, 1);
+                return 429;
+            }
+            Path dirName = dir.getFileName();
+            String name = dirName == null ? "download" : dirName.toString();
+            String ascii = name.replaceAll("[^A-Za-z0-9._-]", "_");
+            ex.getResponseHeaders().set("Content-Type", "application/zip");
+            ex.getResponseHeaders().set("Content-Disposition", "attachment; filename=\"" + ascii + ".zip\"; filename*=UTF-8''"
+                    + URLEncoder.encode(name + ".zip", StandardCharsets.UTF_8).replace("+", "%20"));
+            ex.getResponseHeaders().set("Cache-Control", "no-store");
+            metrics.activeTransfers.increment();
+            try (OutputStream os = ex.getResponseBody()) {
+                ex.sendResponseHeaders(200, 0);  // 长度未知，分块传输
+                zipStreamer.write(root, dir, name, os);
+            } finally {
+                metrics.activeTransfers.decrement();
+                qos.endTransfer(client);
+            }
+            return 200;
         }
 
         /* ---------- 日志输出 ---------- */
-        private void log(String ip, String path, int status, long cost) {
+        private void log(Exchange ex, int route, String ip, String path, int status, long startNanos) {
+            long micros = (System.nanoTime() - startNanos) / 1000;
+            OutputStream os = ex.getResponseBody();
+            long bytes = os instanceof CountingOutputStream ? ((CountingOutputStream) os).count : 0;
+            metrics.record(status >= 400 ? Metrics.ERROR : route, micros, bytes);
+            long throttled = os instanceof CountingOutputStream
+                    && ((CountingOutputStream) os).inner() instanceof Qos.ThrottledOutputStream
+                    ? ((Qos.ThrottledOutputStream) ((CountingOutputStream) os).inner()).throttledNanos / 1000 : 0;
+
             // 忽略对静态资源的请求日志
             if (path.startsWith("/Resources/")) {
                 return;
             }
-            
-            String time = LocalDateTime.now().format(LOG_TIME);
-            double costInSeconds = cost / 1000.0;
-            System.out.printf("[%s] %d | %-15s | %s (%.3fs)%n",
-                    time, status, ip, path, costInSeconds);
+
+            AccessLog.Record r = new AccessLog.Record();
+            r.time = System.currentTimeMillis();
+            r.micros = micros;
+            r.ip = ip;
+            r.method = ex.getRequestMethod();
+            r.path = path;
+            r.query = ex.getRequestURI().getRawQuery();
+            r.protocol = ex.getProtocol();
+            r.status = status;
+            r.bytes = bytes;
+            r.throttledMicros = throttled;
+            r.referer = ex.getRequestHeaders().getFirst("Referer");
+            r.userAgent = ex.getRequestHeaders().getFirst("User-Agent");
+            accessLog.submit(r);
         }
 
         /* ---------- 目录列表 ---------- */
-        private void listDirectory(HttpExchange ex, Path dir, String uriPath) throws IOException {
+        private int listDirectory(Exchange ex, Path dir, String uriPath) throws IOException {
             // 获取排序参数
             String sortBy = "name";
             String order = "asc";
+            int offset = 0;
+            int limit = pageSize;
             String query = ex.getRequestURI().getQuery();
             if (query != null) {
                 String decodedQuery = URLDecoder.decode(query, "UTF-8");
@@ -214,24 +5116,179 @@ public class SimpleFileServer {
                     if (kv.length == 2) {
                         if ("sort".equals(kv[0])) sortBy = kv[1];
                         if ("order".equals(kv[0])) order = kv[1];
+                        if ("offset".equals(kv[0])) offset = parseInt(kv[1], offset);
+                        if ("limit".equals(kv[0])) limit = parseInt(kv[1], limit);
+                    }
+                }
+            }
+
+            // 规范化排序参数，避免任意参数值生成无限多的缓存变体
+            if (!"size".equals(sortBy) && !"date".equals(sortBy)) sortBy = "name";
+            if (!"desc".equals(order)) order = "asc";
+            offset = Math.max(0, offset);
+            limit = Math.max(1, Math.min(limit, pageSize * 10));
+
+            Comparator<FileItem> comparator = comparator(sortBy, order);
+            String variant = sortBy + "|" + order + "|" + offset + "|" + limit + "|" + uriPath;
+            // 目录中有新算好的校验和时重新渲染并替换缓存的页面；ETag 带上校验和版本，
+            // 哈希完成前加载过页面的浏览器重新验证时拿到含 SHA-256 的新页面而不是 304
+            long stamp = checksums.version(dir);
+            String tagged = variant + "|" + stamp;
+            Function<FileItem, byte[]> sha256 = !checksums.enabled ? null
+                    : item -> item.isDirectory ? null : checksums.lookup(dir.resolve(item.name), item.size, item.lastModified);
+            boolean gzip = compression.enabled && compression.acceptsGzip(ex);
+            ex.getResponseHeaders().set("Vary", "Accept-Encoding");
+
+            // 优先使用缓存的目录快照及渲染结果（压缩后的页面同样缓存）
+            ListingCache.Entry entry = listingCache.get(dir);
+            if (entry != null) {
+                byte[] html = entry.rendered(variant, stamp);
+                if (html == null) {
+                    PageSelector page = new PageSelector(comparator, offset, limit);
+                    for (FileItem item : entry.items) page.offer(item);
+                    ByteArrayOutputStream bos = new ByteArrayOutputStream(8192);
+                    renderer.render(bos, dir.equals(root), uriPath, page, sortBy, order, sha256);
+                    html = bos.toByteArray();
+                    listingCache.addRendered(dir, entry, variant, stamp, html);
+                }
+                // ETag 按实际发送的编码区分，小于 minSize 的页面不压缩
+                boolean gzipped = gzip && html.length >= compression.minSize;
+                String etag = listingEtag(entry, gzipped ? tagged + "|gzip" : tagged);
+                ex.getResponseHeaders().set("ETag", etag);
+                if (notModified(ex, etag, -1)) {
+                    return sendNotModified(ex);
+                }
+                if (gzipped) {
+                    byte[] gz = entry.rendered(variant + "|gzip", stamp);
+                    if (gz == null) {
+                        gz = Compression.gzip(html);
+                        listingCache.addRendered(dir, entry, variant + "|gzip", stamp, gz);
                     }
+                    ex.getResponseHeaders().set("Content-Encoding", "gzip");
+                    html = gz;
                 }
+                sendHtml(ex, html);
+                return 200;
             }
 
-            // 收集文件信息
-            List<FileItem> items = new ArrayList<>();
+            // 未命中缓存：边扫描边做 top-k 选择，目录不超过缓存预算时顺便填充缓存
+            long scanStart = System.nanoTime();
+            long epoch = listingCache.beginLoad(dir);
+            long dirModified = listingCache.enabled() ? ListingCache.modifiedTime(dir) : -1;
+            PageSelector page = new PageSelector(comparator, offset, limit);
+            List<FileItem> snapshot = listingCache.enabled() ? new ArrayList<>() : null;
+            long estimated = 0;
             try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir)) {
                 for (Path p : ds) {
-                    FileItem item = new FileItem();
-                    item.name = p.getFileName().toString();
-                    item.isDirectory = Files.isDirectory(p);
-                    item.size = item.isDirectory ? 0 : Files.size(p);
-                    item.lastModified = Files.getLastModifiedTime(p).toMillis();
-                    items.add(item);
+                    FileItem item = readItem(p);
+                    if (item == null) continue;
+                    page.offer(item);
+                    if (snapshot != null) {
+                        snapshot.add(item);
+                        estimated += ListingCache.estimate(item);
+                        if (estimated > listingCache.budget) snapshot = null;  // 目录过大，不缓存
+                    }
+                }
+            }
+            metrics.listingScan.record((System.nanoTime() - scanStart) / 1000);
+            if (snapshot != null) {
+                entry = new ListingCache.Entry(snapshot, dirModified);
+                listingCache.put(dir, entry, epoch);
+            }
+
+            // 分块传输，边渲染边发送；是否压缩及 ETag 在输出达到 minSize 或页面结束时确定
+            ex.getResponseHeaders().set("Content-Type", "text/html; charset=UTF-8");
+            try (OutputStream out = new ListingOutput(ex, entry, tagged, gzip ? compression.minSize : -1)) {
+                renderer.render(out, dir.equals(root), uriPath, page, sortBy, order, sha256);
+            }
+            return 200;
+        }
+
+        /**
+         * 未命中缓存时的目录页输出。客户端接受 gzip 时先缓冲，页面小于 minSize 则不压缩、带长度发送；
+         * 达到 minSize 后改为 gzip 分块流式发送。ETag 与命中缓存时一样按实际编码区分
+         */
+        private static final class ListingOutput extends OutputStream {
+            private final Exchange ex;
+            private final ListingCache.Entry entry;  // 为 null 时（目录未缓存）不发送 ETag
+            private final String variant;
+            private final long minSize;  // -1 表示不压缩
+            private ByteArrayOutputStream head;
+            private OutputStream out;
+
+            ListingOutput(Exchange ex, ListingCache.Entry entry, String variant, long minSize) throws IOException {
+                this.ex = ex;
+                this.entry = entry;
+                this.variant = variant;
+                this.minSize = minSize;
+                if (minSize < 0) start(false);
+                else head = new ByteArrayOutputStream((int) Math.min(minSize, 64 * 1024) + 1);
+            }
+
+            private void start(boolean gzipped) throws IOException {
+                if (entry != null) ex.getResponseHeaders().set("ETag", listingEtag(entry, gzipped ? variant + "|gzip" : variant));
+                if (gzipped) ex.getResponseHeaders().set("Content-Encoding", "gzip");
+                ex.sendResponseHeaders(200, 0);
+                out = gzipped ? new GZIPOutputStream(ex.getResponseBody(), 16 * 1024) : ex.getResponseBody();
+            }
+
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[]{(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                if (out != null) {
+                    out.write(b, off, len);
+                    return;
+                }
+                head.write(b, off, len);
+                if (head.size() >= minSize) {
+                    start(true);
+                    head.writeTo(out);
+                    head = null;
+                }
+            }
+
+            @Override
+            public void flush() throws IOException {
+                if (out != null) out.flush();
+            }
+
+            @Override
+            public void close() throws IOException {
+                if (out == null) {
+                    // 整页不足 minSize：不压缩，带长度发送
+                    byte[] bytes = head.toByteArray();
+                    if (entry != null) ex.getResponseHeaders().set("ETag", listingEtag(entry, variant));
+                    ex.sendResponseHeaders(200, bytes.length == 0 ? -1 : bytes.length);
+                    out = ex.getResponseBody();
+                    out.write(bytes);
                 }
+                out.close();
+            }
+        }
+
+        /* ---------- 目录扫描 ---------- */
+        // 每个条目只做一次 stat；无法读取属性的条目（如失效的符号链接）直接跳过
+        private static FileItem readItem(Path p) {
+            BasicFileAttributes attrs;
+            try {
+                attrs = Files.readAttributes(p, BasicFileAttributes.class);
+            } catch (IOException e) {
+                return null;
             }
+            FileItem item = new FileItem();
+            item.name = p.getFileName().toString();
+            item.isDirectory = attrs.isDirectory();
+            item.size = item.isDirectory ? 0 : attrs.size();
+            item.lastModified = attrs.lastModifiedTime().toMillis();
+            return item;
+        }
 
-            // 排序处理
+        /* ---------- 排序 ---------- */
+        private static Comparator<FileItem> comparator(String sortBy, String order) {
             Comparator<FileItem> comparator = null;
             switch (sortBy) {
                 case "size":
@@ -251,153 +5308,493 @@ public class SimpleFileServer {
             if ("desc".equals(order)) {
                 comparator = comparator.reversed();
             }
+            return comparator;
+        }
 
-            items.sort(comparator);
+        /** 分页 top-k 选择：只保留排序后的前 offset+limit 项，避免对整个目录做全量排序 */
+        static class PageSelector {
+            final int offset;
+            final int limit;
+            int total;  // 目录中的条目总数
+            private final int k;
+            private final Comparator<FileItem> comparator;
+            private final PriorityQueue<FileItem> heap;  // 堆顶为已保留项中排序最靠后的一项
 
-            // 构建HTML
-            StringBuilder sb = new StringBuilder();
-            sb.append("<!DOCTYPE html><html><head><meta charset='UTF-8'><title>")
-              .append(siteName).append(" ").append(uriPath).append("</title>")
-              .append("<style>body{font-family:'Segoe UI',Arial,sans-serif;margin:0;padding:40px;background-color:#f5f5f5;")
-              .append("background-image:url('").append(backgroundImage).append("');")
-              .append("background-size:cover;background-repeat:no-repeat;background-attachment:fixed;overflow:hidden;}")
-              .append(".container{background-color:rgba(255,255,255,0.9);padding:20px;border-radius:8px;box-shadow:0 2px 10px rgba(0,0,0,0.1);")
-              .append("max-width:1200px;margin:0 auto;max-height:85vh;overflow-y:auto;height:85vh;}")
-              .append("h1{color:#333;margin-top:0;font-size:24px;}")
-              .append("table{border-collapse:collapse;width:100%;margin-top:20px;}")
-              .append("th,td{padding:12px 15px;text-align:left;border-bottom:1px solid #eee;}")
-              .append("th{background-color:#f8f9fa;font-weight:600;color:#555;}")
-              .append("tr:hover{background-color:#f8f9fa;}")
-              .append("a{color:#0066cc;text-decoration:none;display:inline-flex;align-items:center;}")
-              .append("a:hover{text-decoration:underline;}")
-              .append(".icon{width:16px;height:16px;margin-right:8px;}")
-              .append(".btn{display:inline-block;padding:6px 12px;margin:0 5px;font-size:14px;font-weight:400;line-height:1.42857143;")
-              .append("text-align:center;white-space:nowrap;vertical-align:middle;cursor:pointer;border:1px solid transparent;")
-              .append("border-radius:4px;background-color:#f0f0f0;color:#333;text-decoration:none;}")
-              .append(".btn:hover{background-color:#e0e0e0;}")
-              .append(".btn-primary{background-color:#007bff;color:#fff;}")
-              .append(".btn-primary:hover{background-color:#0056b3;}")
-              .append(".btn-success{background-color:#28a745;color:#fff;}")
-              .append(".btn-success:hover{background-color:#1e7e34;}")
-              .append(".sortable{cursor:pointer;text-decoration:underline;}")
-              .append(".actions{white-space:nowrap;}")
-              .append("</style>")
-              .append("<script>")
-              .append("function toggleSort(field) {")
-              .append("  const url = new URL(window.location.href);")
-              .append("  const params = new URLSearchParams(url.search);")
-              .append("  if (params.get('sort') === field) {")
-              .append("    params.set('order', params.get('order') === 'asc' ? 'desc' : 'asc');")
-              .append("  } else {")
-              .append("    params.set('sort', field);")
-              .append("    params.set('order', 'asc');")
-              .append("  }")
-              .append("  url.search = params.toString();")
-              .append("  window.location.href = url.toString();")
-              .append("}")
-              .append("function copyLink(path) {")
-              .append("  const fullUrl = window.location.origin + path;")
-              .append("  if (navigator.clipboard && window.isSecureContext) {")
-              .append("    navigator.clipboard.writeText(fullUrl).then(() => {")
-              .append("      alert('链接已复制到剪贴板');")
-              .append("    }).catch(err => {")
-              .append("      console.error('复制失败: ', err);")
-              .append("      fallbackCopyTextToClipboard(fullUrl);")
-              .append("    });")
-              .append("  } else {")
-              .append("    fallbackCopyTextToClipboard(fullUrl);")
-              .append("  }")
-              .append("}")
-              .append("function fallbackCopyTextToClipboard(text) {")
-              .append("  const textArea = document.createElement('textarea');")
-              .append("  textArea.value = text;")
-              .append("  textArea.style.position = 'fixed';")
-              .append("  textArea.style.left = '-999999px';")
-              .append("  textArea.style.top = '-999999px';")
-              .append("  document.body.appendChild(textArea);")
-              .append("  textArea.focus();")
-              .append("  textArea.select();")
-              .append("  try {")
-              .append("    const successful = document.execCommand('copy');")
-              .append("    if (successful) {")
-              .append("      alert('链接已复制到剪贴板');")
-              .append("    } else {")
-              .append("      console.error('复制失败');")
-              .append("    }")
-              .append("  } catch (err) {")
-              .append("    console.error('复制失败: ', err);")
-              .append("  }")
-              .append("  document.body.removeChild(textArea);")
-              .append("}")
-              .append("</script>")
-              .append("</head><body><div class=\"container\"><h1>").append(siteName).append(" ").append(uriPath)
-              .append("</h1><table><tr>")
-              .append("<th onclick=\"toggleSort('name')\" class=\"sortable\">文件名")
-              .append(sortBy.equals("name") ? (" (".concat("asc".equals(order) ? "↑" : "↓").concat(")")) : "")
-              .append("</th>")
-              .append("<th onclick=\"toggleSort('size')\" class=\"sortable\">大小")
-              .append(sortBy.equals("size") ? (" (".concat("asc".equals(order) ? "↑" : "↓").concat(")")) : "")
-              .append("</th>")
-              .append("<th onclick=\"toggleSort('date')\" class=\"sortable\">更新日期")
-              .append(sortBy.equals("date") ? (" (".concat("asc".equals(order) ? "↑" : "↓").concat(")")) : "")
-              .append("</th><th>操作</th></tr>");
-
-            // 父目录链接
-            if (!dir.equals(root)) {
-                sb.append("<tr><td><a href=\"../\">../</a></td><td>-</td><td>-</td></tr>");
-            }
-
-            // 文件列表
-            for (FileItem item : items) {
-                String link = item.name + (item.isDirectory ? "/" : "");
-                String size = item.isDirectory ? "-" : formatSize(item.size);
-                String time = FILE_TIME.format(LocalDateTime.ofInstant(java.time.Instant.ofEpochMilli(item.lastModified), java.time.ZoneId.systemDefault()));
-                String icon = item.isDirectory ? "folder.png" : "file.png";
-                sb.append("<tr><td><a href=\"").append(link).append("\">")
-                  .append("<img src=\"/Resources/img/").append(icon).append("\" alt=\"\" class=\"icon\">")
-                  .append(link).append("</a></td><td>").append(size)
-                  .append("</td><td>").append(time).append("</td>")
-                  .append("<td class=\"actions\">");
-                if (!item.isDirectory) {
-                    sb.append("<a href=\"").append(link).append("\" class=\"btn btn-primary\">下载</a>");
-                    String path = uriPath + link;
-                    sb.append("<button class=\"btn btn-success\" onclick=\"copyLink('" + path + "')\">复制链接</button>");
-                }
-                sb.append("</td></tr>");
-            }
-            sb.append("</table></div></body></html>");
-            sendHtml(ex, sb.toString());
+            PageSelector(Comparator<FileItem> comparator, int offset, int limit) {
+                this.offset = offset;
+                this.limit = limit;
+                this.k = (int) Math.min(Integer.MAX_VALUE - 8, (long) offset + limit);
+                this.comparator = comparator;
+                this.heap = new PriorityQueue<>(Math.min(k, 1024) + 1, comparator.reversed());
+            }
+
+            void offer(FileItem item) {
+                total++;
+                if (heap.size() < k) {
+                    heap.add(item);
+                } else if (comparator.compare(item, heap.peek()) < 0) {
+                    heap.poll();
+                    heap.add(item);
+                }
+            }
+
+            List<FileItem> page() {
+                List<FileItem> kept = new ArrayList<>(heap);
+                kept.sort(comparator);
+                return offset >= kept.size() ? Collections.emptyList() : kept.subList(offset, kept.size());
+            }
         }
 
         /* ---------- 文件下载 ---------- */
-        private void serveFile(HttpExchange ex, Path file) throws IOException {
+        /** client 为 null 时不限制并发下载数（静态资源） */
+        private int serveFile(Exchange ex, Path file, Qos.Client client) throws IOException {
             String mime = Files.probeContentType(file);
             if (mime == null) mime = "application/octet-stream";
             ex.getResponseHeaders().set("Content-Type", mime);
-            
-            // 为静态资源添加缓存头
-            if (file.toString().contains("Resources")) {
-                // 设置缓存头，让浏览器缓存资源1小时
-                ex.getResponseHeaders().set("Cache-Control", "public, max-age=3600");
-                ex.getResponseHeaders().set("Expires", java.time.format.DateTimeFormatter.RFC_1123_DATE_TIME.format(
-                    java.time.ZonedDateTime.now().plusHours(1)));
+            ex.getResponseHeaders().set("Accept-Ranges", "bytes");
+            BasicFileAttributes attrs = Files.readAttributes(file, BasicFileAttributes.class);
+
+            // 小文件读入热点缓存，之后的请求直接从内存返回
+            if (fileCache.enabled() && attrs.size() <= fileCache.maxFileSize
+                    && ex.getRequestHeaders().getFirst("Range") == null) {
+                FileCache.Entry cached = loadCached(file, mime, attrs);
+                if (cached != null) {
+                    return serveCached(ex, cached);
+                }
             }
-            
-            ex.sendResponseHeaders(200, Files.size(file));
+
+            // 内容协商：优先直接发送预压缩的 .gz 文件，其次对可压缩类型实时 gzip
+            Path body = file;
+            boolean dynamicGzip = false;
+            if (compression.enabled) {
+                Path sidecar = file.resolveSibling(file.getFileName() + ".gz");
+                BasicFileAttributes gzAttrs = Compression.sidecarAttributes(sidecar, attrs);
+                boolean compressible = compression.isCompressible(mime);
+                if (gzAttrs != null || compressible) {
+                    ex.getResponseHeaders().set("Vary", "Accept-Encoding");
+                }
+                if (compression.acceptsGzip(ex)) {
+                    if (gzAttrs != null) {
+                        body = sidecar;
+                        attrs = gzAttrs;
+                        ex.getResponseHeaders().set("Content-Encoding", "gzip");
+                    } else if (compressible && attrs.size() >= compression.minSize && attrs.size() <= compression.maxSize
+                            && ex.getRequestHeaders().getFirst("Range") == null) {
+                        dynamicGzip = true;
+                    }
+                }
+            }
+
+            // 未编码的响应附带已算好的 SHA-256
+            if (body == file && !dynamicGzip) {
+                digestHeaders(ex, checksums.lookup(file, attrs.size(), attrs.lastModifiedTime().toMillis()));
+            }
+
+            // 校验器：强 ETag 由大小、修改时间和文件标识（inode）生成，不同编码使用不同的 ETag
+            long lastModified = attrs.lastModifiedTime().toMillis();
+            String etag = fileEtag(attrs);
+            if (dynamicGzip) {
+                etag = etag.substring(0, etag.length() - 1) + "-gzip\"";
+            }
+            ex.getResponseHeaders().set("ETag", etag);
+            ex.getResponseHeaders().set("Last-Modified", formatHttpDate(lastModified));
+            if (notModified(ex, etag, lastModified)) {
+                return sendNotModified(ex);
+            }
+
+            // 超过该 IP 的并发下载数
+            if (!qos.beginTransfer(client)) {
+                serve429(ex, 1);
+                return 429;
+            }
+            metrics.activeTransfers.increment();
+            try (FileChannel ch = FileChannel.open(body, StandardOpenOption.READ)) {
+                long length = ch.size();
+
+                if (dynamicGzip) {
+                    ex.getResponseHeaders().set("Content-Encoding", "gzip");
+                    ex.sendResponseHeaders(200, 0);
+                    try (OutputStream os = new GZIPOutputStream(ex.getResponseBody(), 64 * 1024)) {
+                        transfer(ch, 0, length, os);
+                    }
+                    return 200;
+                }
+
+                // 解析 Range 请求（If-Range 不匹配时按完整文件返回）
+                List<long[]> ranges = null;
+                String rangeHeader = ex.getRequestHeaders().getFirst("Range");
+                if (rangeHeader != null && length > 0 && ifRangeMatches(ex, etag, lastModified)) {
+                    ranges = parseRanges(rangeHeader, length);
+                }
+
+                if (ranges == null) {
+                    ex.sendResponseHeaders(200, length == 0 ? -1 : length);
+                    try (OutputStream os = ex.getResponseBody()) {
+                        transfer(ch, 0, length, os);
+                    }
+                    return 200;
+                }
+
+                if (ranges.isEmpty()) {
+                    ex.getResponseHeaders().set("Content-Range", "bytes */" + length);
+                    ex.sendResponseHeaders(416, -1);
+                    ex.close();
+                    return 416;
+                }
+
+                if (ranges.size() == 1) {
+                    long[] r = ranges.get(0);
+                    long count = r[1] - r[0] + 1;
+                    ex.getResponseHeaders().set("Content-Range", "bytes " + r[0] + "-" + r[1] + "/" + length);
+                    ex.sendResponseHeaders(206, count);
+                    try (OutputStream os = ex.getResponseBody()) {
+                        transfer(ch, r[0], count, os);
+                    }
+                    return 206;
+                }
+
+                // 多段范围：multipart/byteranges
+                String boundary = Long.toHexString(System.nanoTime()) + Long.toHexString(Double.doubleToLongBits(Math.random()));
+                List<byte[]> partHeads = new ArrayList<>(ranges.size());
+                long total = 0;
+                for (long[] r : ranges) {
+                    byte[] head = ("\r\n--" + boundary + "\r\nContent-Type: " + mime
+                            + "\r\nContent-Range: bytes " + r[0] + "-" + r[1] + "/" + length + "\r\n\r\n")
+                            .getBytes(StandardCharsets.ISO_8859_1);
+                    partHeads.add(head);
+                    total += head.length + (r[1] - r[0] + 1);
+                }
+                byte[] tail = ("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.ISO_8859_1);
+                total += tail.length;
+
+                ex.getResponseHeaders().set("Content-Type", "multipart/byteranges; boundary=" + boundary);
+                ex.sendResponseHeaders(206, total);
+                try (OutputStream os = ex.getResponseBody()) {
+                    for (int i = 0; i < ranges.size(); i++) {
+                        long[] r = ranges.get(i);
+                        os.write(partHeads.get(i));
+                        transfer(ch, r[0], r[1] - r[0] + 1, os);
+                    }
+                    os.write(tail);
+                }
+                return 206;
+            } finally {
+                metrics.activeTransfers.decrement();
+                qos.endTransfer(client);
+            }
+        }
+
+        /**
+         * 解析 Range 请求头，返回按起始位置排序并合并后的闭区间 [start, end]。
+         * 返回 null 表示应忽略该请求头（语法错误或范围过多），返回空列表表示范围不可满足。
+         */
+        static List<long[]> parseRanges(String header, long length) {
+            header = header.trim();
+            if (!header.regionMatches(true, 0, "bytes=", 0, 6)) return null;
+            List<long[]> ranges = new ArrayList<>();
+            for (String spec : header.substring(6).split(",")) {
+                spec = spec.trim();
+                int dash = spec.indexOf('-');
+                if (dash < 0) return null;
+                String first = spec.substring(0, dash).trim();
+                String last = spec.substring(dash + 1).trim();
+                long start, end;
+                try {
+                    if (first.isEmpty()) {
+                        // 后缀范围：最后 N 个字节
+                        if (last.isEmpty()) return null;
+                        long suffix = Long.parseLong(last);
+                        if (suffix < 0) return null;
+                        if (suffix == 0) continue;
+                        start = Math.max(0, length - suffix);
+                        end = length - 1;
+                    } else {
+                        start = Long.parseLong(first);
+                        end = last.isEmpty() ? Long.MAX_VALUE : Long.parseLong(last);
+                        if (start < 0 || end < start) return null;
+                        if (start >= length) continue;
+                        end = Math.min(end, length - 1);
+                    }
+                } catch (NumberFormatException e) {
+                    return null;
+                }
+                ranges.add(new long[]{start, end});
+            }
+            if (ranges.size() <= 1) return ranges;
+
+            // 合并重叠或相邻的范围，防止客户端用大量小范围放大请求
+            ranges.sort(Comparator.comparingLong(r -> r[0]));
+            List<long[]> merged = new ArrayList<>();
+            long[] cur = ranges.get(0);
+            for (int i = 1; i < ranges.size(); i++) {
+                long[] r = ranges.get(i);
+                if (r[0] <= cur[1] + 1) {
+                    cur[1] = Math.max(cur[1], r[1]);
+                } else {
+                    merged.add(cur);
+                    cur = r;
+                }
+            }
+            merged.add(cur);
+            return merged.size() > MAX_RANGES ? null : merged;
+        }
+
+        /** If-Range 校验：仅当资源未变化时才按 Range 返回部分内容 */
+        private static boolean ifRangeMatches(Exchange ex, String etag, long lastModified) {
+            String ifRange = ex.getRequestHeaders().getFirst("If-Range");
+            if (ifRange == null) return true;
+            ifRange = ifRange.trim();
+            if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+                return etagMatches(ifRange, etag, true);
+            }
+            long date = parseHttpDate(ifRange);
+            return date >= 0 && date == lastModified / 1000;
+        }
+
+        /* ---------- 热点文件缓存 ---------- */
+        /** 缓存命中且不是 Range 请求时返回缓存条目，命中时不访问磁盘 */
+        private FileCache.Entry cachedFor(Exchange ex, Path file) {
+            if (!fileCache.enabled() || ex.getRequestHeaders().getFirst("Range") != null) return null;
+            return fileCache.get(file.toAbsolutePath());
+        }
+
+        /** 读取文件并预先计算响应头及压缩版本后放入缓存 */
+        private FileCache.Entry loadCached(Path file, String mime, BasicFileAttributes attrs) throws IOException {
+            Path key = file.toAbsolutePath();
+            fileCache.misses.increment();
+            long epoch = fileCache.beginLoad(key);
+            byte[] data = Files.readAllBytes(file);
+            if (data.length != attrs.size()) return null;  // 读取期间文件被修改
+
+            byte[] gz = null;
+            String gzipEtag = null;
+            boolean compressible = false;
+            if (compression.enabled) {
+                compressible = compression.isCompressible(mime);
+                Path sidecar = file.resolveSibling(file.getFileName() + ".gz");
+                BasicFileAttributes gzAttrs = Compression.sidecarAttributes(sidecar, attrs);
+                if (gzAttrs != null) {
+                    gz = Files.readAllBytes(sidecar);
+                    gzipEtag = fileEtag(gzAttrs);
+                } else if (compressible && data.length >= compression.minSize) {
+                    gz = Compression.gzip(data);
+                    String etag = fileEtag(attrs);
+                    gzipEtag = etag.substring(0, etag.length() - 1) + "-gzip\"";
+                }
+                compressible |= gz != null;
+            }
+            FileCache.Entry entry = new FileCache.Entry(key, mime, fileEtag(attrs), attrs.lastModifiedTime().toMillis(),
+                    data, gz, gzipEtag, compressible);
+            fileCache.put(entry, epoch);
+            return entry;
+        }
+
+        private int serveCached(Exchange ex, FileCache.Entry e) throws IOException {
+            boolean gzip = e.gzipBody != null && compression.acceptsGzip(ex);
+            HeaderMap h = ex.getResponseHeaders();
+            h.set("Content-Type", e.mime);
+            h.set("Accept-Ranges", "bytes");
+            if (e.vary) h.set("Vary", "Accept-Encoding");
+            String etag = gzip ? e.gzipEtag : e.etag;
+            h.set("ETag", etag);
+            h.set("Last-Modified", e.lastModifiedHttp);
+            if (notModified(ex, etag, e.lastModified)) {
+                return sendNotModified(ex);
+            }
+            if (gzip) h.set("Content-Encoding", "gzip");
+            else digestHeaders(ex, checksums.lookup(e.file, e.body.remaining(), e.lastModified));
+            ByteBuffer body = (gzip ? e.gzipBody : e.body).duplicate();
+            ex.sendResponseHeaders(200, body.remaining() == 0 ? -1 : body.remaining());
             try (OutputStream os = ex.getResponseBody()) {
-                Files.copy(file, os);
+                ZeroCopySink sink = zeroCopySink(os);
+                if (sink != null) {
+                    int n = body.remaining();
+                    sink.sendBuffer(body);
+                    ((CountingOutputStream) os).count += n;
+                } else {
+                    WritableByteChannel out = Channels.newChannel(os);
+                    while (body.hasRemaining()) out.write(body);
+                }
+            }
+            return 200;
+        }
+
+        /**
+         * 通过 FileChannel.transferTo 发送文件区间。只有 NIO 引擎的 ZeroCopySink 能把文件直接写到套接字；
+         * JDK 引擎的响应流不是通道，transferTo 退化为经用户态缓冲区的逐块拷贝
+         */
+        private static void transfer(FileChannel ch, long position, long count, OutputStream os) throws IOException {
+            ZeroCopySink sink = zeroCopySink(os);
+            if (sink != null) {
+                sink.sendFile(ch, position, count);
+                ((CountingOutputStream) os).count += count;
+                return;
+            }
+            WritableByteChannel out = Channels.newChannel(os);
+            while (count > 0) {
+                long n = ch.transferTo(position, count, out);
+                if (n <= 0) {
+                    if (position >= ch.size()) throw new EOFException("文件在传输过程中被截断");
+                    continue;
+                }
+                position += n;
+                count -= n;
+            }
+        }
+
+        /* ---------- 校验和 ---------- */
+        /** Digest（RFC 3230）与 Repr-Digest（RFC 9530），摘要未就绪时不设置 */
+        private static void digestHeaders(Exchange ex, byte[] sha256) {
+            if (sha256 == null) return;
+            String b64 = Base64.getEncoder().encodeToString(sha256);
+            ex.getResponseHeaders().set("Digest", "SHA-256=" + b64);
+            ex.getResponseHeaders().set("Repr-Digest", "sha-256=:" + b64 + ":");
+        }
+
+        /** sha256sum 格式的校验和文件；尚未算好时返回 503，稍后重试 */
+        private int serveChecksum(Exchange ex, Path file) throws IOException {
+            BasicFileAttributes attrs = Files.readAttributes(file, BasicFileAttributes.class);
+            byte[] sha256 = checksums.lookup(file, attrs.size(), attrs.lastModifiedTime().toMillis());
+            if (sha256 == null) {
+                byte[] msg = "正在计算校验和，请稍后重试\n".getBytes(StandardCharsets.UTF_8);
+                ex.getResponseHeaders().set("Content-Type", "text/plain; charset=UTF-8");
+                ex.getResponseHeaders().set("Retry-After", "10");
+                ex.getResponseHeaders().set("Cache-Control", "no-store");
+                ex.sendResponseHeaders(503, msg.length);
+                try (OutputStream os = ex.getResponseBody()) { os.write(msg); }
+                return 503;
+            }
+            byte[] body = (Checksums.hex(sha256) + "  " + file.getFileName() + "\n").getBytes(StandardCharsets.UTF_8);
+            ex.getResponseHeaders().set("Content-Type", "text/plain; charset=UTF-8");
+            ex.getResponseHeaders().set("Last-Modified", formatHttpDate(attrs.lastModifiedTime().toMillis()));
+            ex.sendResponseHeaders(200, body.length);
+            try (OutputStream os = ex.getResponseBody()) { os.write(body); }
+            return 200;
+        }
+
+        /** 响应流只经过计数包装、引擎支持零拷贝时返回引擎的输出端，否则返回 null */
+        private static ZeroCopySink zeroCopySink(OutputStream os) {
+            if (!(os instanceof CountingOutputStream)) return null;
+            OutputStream inner = ((CountingOutputStream) os).inner();
+            return inner instanceof ZeroCopySink ? (ZeroCopySink) inner : null;
+        }
+
+        /* ---------- 条件请求 ---------- */
+        static String fileEtag(BasicFileAttributes attrs) {
+            StringBuilder sb = new StringBuilder("\"")
+                    .append(Long.toHexString(attrs.size())).append('-')
+                    .append(Long.toHexString(attrs.lastModifiedTime().toMillis()));
+            Object key = attrs.fileKey();
+            if (key != null) {
+                sb.append('-').append(Integer.toHexString(key.hashCode()));
+            }
+            return sb.append('"').toString();
+        }
+
+        /** 目录列表使用弱 ETag：缓存快照版本号 + 渲染变体 */
+        static String listingEtag(ListingCache.Entry entry, String variant) {
+            return "W/\"" + Long.toHexString(entry.version) + "-" + Integer.toHexString(variant.hashCode()) + "\"";
+        }
+
+        /** 按 If-None-Match（优先）或 If-Modified-Since 判断客户端缓存是否仍然有效 */
+        private static boolean notModified(Exchange ex, String etag, long lastModified) {
+            String ifNoneMatch = ex.getRequestHeaders().getFirst("If-None-Match");
+            if (ifNoneMatch != null) {
+                return etagMatches(ifNoneMatch, etag, false);
+            }
+            String ifModifiedSince = ex.getRequestHeaders().getFirst("If-Modified-Since");
+            if (ifModifiedSince != null && lastModified >= 0) {
+                long since = parseHttpDate(ifModifiedSince.trim());
+                return since >= 0 && lastModified / 1000 <= since;
             }
+            return false;
+        }
+
+        /** ETag 列表匹配；strong 为 true 时使用强比较（弱 ETag 永不匹配） */
+        static boolean etagMatches(String header, String etag, boolean strong) {
+            if (etag == null) return false;
+            for (String tag : header.split(",")) {
+                tag = tag.trim();
+                if (tag.equals("*")) return true;
+                if (strong) {
+                    if (!tag.startsWith("W/") && !etag.startsWith("W/") && tag.equals(etag)) return true;
+                } else if (stripWeak(tag).equals(stripWeak(etag))) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private static String stripWeak(String tag) {
+            return tag.startsWith("W/") ? tag.substring(2) : tag;
+        }
+
+        private static int sendNotModified(Exchange ex) throws IOException {
+            ex.sendResponseHeaders(304, -1);
+            ex.close();
+            return 304;
+        }
+
+        /** 解析 HTTP 日期，返回秒级时间戳；格式错误时返回 -1 */
+        static long parseHttpDate(String value) {
+            try {
+                return java.time.ZonedDateTime.parse(value, java.time.format.DateTimeFormatter.RFC_1123_DATE_TIME)
+                        .toInstant().getEpochSecond();
+            } catch (java.time.format.DateTimeParseException e) {
+                return -1;
+            }
+        }
+
+        static String formatHttpDate(long millis) {
+            return java.time.format.DateTimeFormatter.RFC_1123_DATE_TIME.format(
+                    java.time.ZonedDateTime.ofInstant(java.time.Instant.ofEpochMilli(millis), java.time.ZoneOffset.UTC));
+        }
+
+        /** 最长前缀匹配的 Cache-Control 策略 */
+        private String cachePolicy(String uriPath) {
+            String best = null;
+            String value = null;
+            for (Map.Entry<String, String> e : cachePolicies.entrySet()) {
+                if (uriPath.startsWith(e.getKey()) && (best == null || e.getKey().length() > best.length())) {
+                    best = e.getKey();
+                    value = e.getValue();
+                }
+            }
+            return value;
         }
 
         /* ---------- 错误页面 ---------- */
-        private void serve404(HttpExchange ex) throws IOException {
+        private void serve404(Exchange ex) throws IOException {
             String html = "<h1>404 Not Found</h1>";
             ex.sendResponseHeaders(404, html.length());
             try (OutputStream os = ex.getResponseBody()) {
                 os.write(html.getBytes("UTF-8"));
             }
         }
-        private void serve500(HttpExchange ex) throws IOException {
+        private void serve429(Exchange ex, long retryAfter) throws IOException {
+            String html = "<h1>429 Too Many Requests</h1>";
+            ex.getResponseHeaders().set("Retry-After", String.valueOf(retryAfter));
+            ex.sendResponseHeaders(429, html.length());
+            try (OutputStream os = ex.getResponseBody()) {
+                os.write(html.getBytes("UTF-8"));
+            }
+        }
+        private void serve502(Exchange ex) throws IOException {
+            String html = "<h1>502 Bad Gateway</h1>";
+            ex.sendResponseHeaders(502, html.length());
+            try (OutputStream os = ex.getResponseBody()) {
+                os.write(html.getBytes("UTF-8"));
+            }
+        }
+        private void serve503(Exchange ex) throws IOException {
+            String html = "<h1>503 Service Unavailable</h1>";
+            ex.getResponseHeaders().set("Retry-After", "1");
+            ex.sendResponseHeaders(503, html.length());
+            try (OutputStream os = ex.getResponseBody()) {
+                os.write(html.getBytes("UTF-8"));
+            }
+        }
+        private void serve500(Exchange ex) throws IOException {
             String html = "<h1>500 Internal Server Error</h1>";
             ex.sendResponseHeaders(500, html.length());
             try (OutputStream os = ex.getResponseBody()) {
@@ -406,21 +5803,21 @@ public class SimpleFileServer {
         }
 
         /* ---------- 工具 ---------- */
-        private void sendHtml(HttpExchange ex, String html) throws IOException {
-            byte[] bytes = html.getBytes("UTF-8");
+        private void sendHtml(Exchange ex, byte[] bytes) throws IOException {
             ex.getResponseHeaders().set("Content-Type", "text/html; charset=UTF-8");
             ex.sendResponseHeaders(200, bytes.length);
             try (OutputStream os = ex.getResponseBody()) { os.write(bytes); }
         }
-        private String formatSize(long bytes) {
-            if (bytes < 1024) return bytes + " B";
-            int exp = (int) (Math.log(bytes) / Math.log(1024));
-            String pre = "KMGTPE".charAt(exp - 1) + "";
-            return SIZE_FMT.format(bytes / Math.pow(1024, exp)) + " " + pre + "B";
+        private static int parseInt(String s, int def) {
+            try {
+                return Integer.parseInt(s.trim());
+            } catch (NumberFormatException e) {
+                return def;
+            }
         }
         
         /* ---------- 文件项辅助类 ---------- */
-        private static class FileItem {
+        static class FileItem {
             String name;
             boolean isDirectory;
             long size;
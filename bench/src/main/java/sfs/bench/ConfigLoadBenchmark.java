@@ -0,0 +1,43 @@
+package sfs.bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/** 解析仓库自带的 config.yml */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConfigLoadBenchmark {
+    private Path tmp;
+    private Path config;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        tmp = Files.createTempDirectory("sfs-bench-config");
+        config = tmp.resolve("config.yml");
+        Path shipped = Path.of("config.yml");
+        if (Files.exists(shipped)) {
+            Files.copy(shipped, config);
+        } else {
+            Files.write(config, "port: 36090\nserve: public\nsiteName: 我的文件站\n".getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Fixtures.delete(tmp);
+    }
+
+    @Benchmark
+    public Object load() throws IOException {
+        return Sfs.loadConfig(config);
+    }
+}
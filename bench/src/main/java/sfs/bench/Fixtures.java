@@ -0,0 +1,66 @@
+package sfs.bench;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.Random;
+
+/** 基准测试与压测共用的临时目录夹具 */
+final class Fixtures {
+    private Fixtures() {
+    }
+
+    /** 创建含 n 个文件（稀疏文件，大小和修改时间随机）及少量子目录的目录 */
+    static Path directory(Path parent, String name, int n) throws IOException {
+        Path dir = Files.createDirectories(parent.resolve(name));
+        Random rnd = new Random(42);
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < n; i++) {
+            Path p = dir.resolve(String.format("file-%06d-%s.bin", i, Long.toHexString(rnd.nextLong())));
+            if (i % 100 == 0) {
+                Files.createDirectory(p);
+            } else {
+                try (RandomAccessFile raf = new RandomAccessFile(p.toFile(), "rw")) {
+                    raf.setLength(rnd.nextInt(1 << 20) * (long) (1 + rnd.nextInt(4096)));
+                }
+            }
+            Files.setLastModifiedTime(p, FileTime.fromMillis(now - (long) rnd.nextInt(365 * 86400) * 1000));
+        }
+        return dir;
+    }
+
+    /** 创建指定大小、内容随机的文件 */
+    static Path file(Path parent, String name, long size) throws IOException {
+        Path p = parent.resolve(name);
+        byte[] chunk = new byte[64 * 1024];
+        new Random(size).nextBytes(chunk);
+        try (var out = Files.newOutputStream(p)) {
+            for (long left = size; left > 0; left -= chunk.length) {
+                out.write(chunk, 0, (int) Math.min(chunk.length, left));
+            }
+        }
+        return p;
+    }
+
+    static void delete(Path root) throws IOException {
+        if (root == null || !Files.exists(root)) return;
+        Files.walkFileTree(root, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+}
@@ -0,0 +1,56 @@
+package sfs.bench;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.text.DecimalFormat;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/** 文件大小格式化：整数实现与原 Math.log/Math.pow + DecimalFormat 实现的对比 */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FormatSizeBenchmark {
+    private static final int N = 1024;
+
+    private final long[] sizes = new long[N];
+    private final DecimalFormat legacyFormat = new DecimalFormat("#,###");
+    private Object sink;
+
+    @Setup
+    public void setup() throws IOException {
+        Random rnd = new Random(7);
+        for (int i = 0; i < N; i++) {
+            sizes[i] = rnd.nextLong() >>> (1 + rnd.nextInt(60));
+        }
+        sink = Sfs.newSink();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(N)
+    public void integer() throws IOException {
+        Sfs.sinkBegin(sink, OutputStream.nullOutputStream());
+        for (long size : sizes) Sfs.writeSize(sink, size);
+        Sfs.sinkEnd(sink);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(N)
+    public void legacy(Blackhole bh) {
+        for (long size : sizes) bh.consume(legacyFormatSize(size));
+    }
+
+    /** 重构前 LoggingFileHandler.formatSize 的实现，作为对照 */
+    private String legacyFormatSize(long bytes) {
+        if (bytes < 1024) return bytes + " B";
+        int exp = (int) (Math.log(bytes) / Math.log(1024));
+        String pre = "KMGTPE".charAt(exp - 1) + "";
+        return legacyFormat.format(bytes / Math.pow(1024, exp)) + " " + pre + "B";
+    }
+}
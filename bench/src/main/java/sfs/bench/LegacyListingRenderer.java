@@ -0,0 +1,170 @@
+package sfs.bench;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.text.DecimalFormat;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+
+/**
+ * 重构前 LoggingFileHandler.renderListing 的实现（StringBuilder/Writer 逐段拼接，每行格式化大小和日期），
+ * 作为 ListingBenchmark 中预编码渲染器的对照；除了通过 Sfs 读取条目字段外与原实现一致。
+ */
+final class LegacyListingRenderer {
+    private static final DateTimeFormatter FILE_TIME =
+            DateTimeFormatter.ofPattern("yyyy.M.d HH:mm:ss", Locale.getDefault());
+    private static final DecimalFormat SIZE_FMT = new DecimalFormat("#,###");
+
+    private final String siteName;
+    private final String backgroundImage;
+
+    LegacyListingRenderer(String siteName, String backgroundImage) {
+        this.siteName = siteName;
+        this.backgroundImage = backgroundImage;
+    }
+
+    void render(Writer sb, boolean isRoot, String uriPath, Object page, String sortBy, String order) throws IOException {
+        sb.append("<!DOCTYPE html><html><head><meta charset='UTF-8'><title>")
+          .append(siteName).append(" ").append(uriPath).append("</title>")
+          .append("<style>body{font-family:'Segoe UI',Arial,sans-serif;margin:0;padding:40px;background-color:#f5f5f5;")
+          .append("background-image:url('").append(backgroundImage).append("');")
+          .append("background-size:cover;background-repeat:no-repeat;background-attachment:fixed;overflow:hidden;}")
+          .append(".container{background-color:rgba(255,255,255,0.9);padding:20px;border-radius:8px;box-shadow:0 2px 10px rgba(0,0,0,0.1);")
+          .append("max-width:1200px;margin:0 auto;max-height:85vh;overflow-y:auto;height:85vh;}")
+          .append("h1{color:#333;margin-top:0;font-size:24px;}")
+          .append("table{border-collapse:collapse;width:100%;margin-top:20px;}")
+          .append("th,td{padding:12px 15px;text-align:left;border-bottom:1px solid #eee;}")
+          .append("th{background-color:#f8f9fa;font-weight:600;color:#555;}")
+          .append("tr:hover{background-color:#f8f9fa;}")
+          .append("a{color:#0066cc;text-decoration:none;display:inline-flex;align-items:center;}")
+          .append("a:hover{text-decoration:underline;}")
+          .append(".icon{width:16px;height:16px;margin-right:8px;}")
+          .append(".btn{display:inline-block;padding:6px 12px;margin:0 5px;font-size:14px;font-weight:400;line-height:1.42857143;")
+          .append("text-align:center;white-space:nowrap;vertical-align:middle;cursor:pointer;border:1px solid transparent;")
+          .append("border-radius:4px;background-color:#f0f0f0;color:#333;text-decoration:none;}")
+          .append(".btn:hover{background-color:#e0e0e0;}")
+          .append(".btn-primary{background-color:#007bff;color:#fff;}")
+          .append(".btn-primary:hover{background-color:#0056b3;}")
+          .append(".btn-success{background-color:#28a745;color:#fff;}")
+          .append(".btn-success:hover{background-color:#1e7e34;}")
+          .append(".sortable{cursor:pointer;text-decoration:underline;}")
+          .append(".actions{white-space:nowrap;}")
+          .append(".pager{margin-top:15px;color:#555;}")
+          .append("</style>")
+          .append("<script>")
+          .append("function toggleSort(field) {")
+          .append("  const url = new URL(window.location.href);")
+          .append("  const params = new URLSearchParams(url.search);")
+          .append("  if (params.get('sort') === field) {")
+          .append("    params.set('order', params.get('order') === 'asc' ? 'desc' : 'asc');")
+          .append("  } else {")
+          .append("    params.set('sort', field);")
+          .append("    params.set('order', 'asc');")
+          .append("  }")
+          .append("  params.delete('offset');")
+          .append("  url.search = params.toString();")
+          .append("  window.location.href = url.toString();")
+          .append("}")
+          .append("function copyLink(path) {")
+          .append("  const fullUrl = window.location.origin + path;")
+          .append("  if (navigator.clipboard && window.isSecureContext) {")
+          .append("    navigator.clipboard.writeText(fullUrl).then(() => {")
+          .append("      alert('链接已复制到剪贴板');")
+          .append("    }).catch(err => {")
+          .append("      console.error('复制失败: ', err);")
+          .append("      fallbackCopyTextToClipboard(fullUrl);")
+          .append("    });")
+          .append("  } else {")
+          .append("    fallbackCopyTextToClipboard(fullUrl);")
+          .append("  }")
+          .append("}")
+          .append("function fallbackCopyTextToClipboard(text) {")
+          .append("  const textArea = document.createElement('textarea');")
+          .append("  textArea.value = text;")
+          .append("  textArea.style.position = 'fixed';")
+          .append("  textArea.style.left = '-999999px';")
+          .append("  textArea.style.top = '-999999px';")
+          .append("  document.body.appendChild(textArea);")
+          .append("  textArea.focus();")
+          .append("  textArea.select();")
+          .append("  try {")
+          .append("    const successful = document.execCommand('copy');")
+          .append("    if (successful) {")
+          .append("      alert('链接已复制到剪贴板');")
+          .append("    } else {")
+          .append("      console.error('复制失败');")
+          .append("    }")
+          .append("  } catch (err) {")
+          .append("    console.error('复制失败: ', err);")
+          .append("  }")
+          .append("  document.body.removeChild(textArea);")
+          .append("}")
+          .append("</script>")
+          .append("</head><body><div class=\"container\"><h1>").append(siteName).append(" ").append(uriPath)
+          .append("</h1><table><tr>")
+          .append("<th onclick=\"toggleSort('name')\" class=\"sortable\">文件名")
+          .append(sortBy.equals("name") ? (" (".concat("asc".equals(order) ? "↑" : "↓").concat(")")) : "")
+          .append("</th>")
+          .append("<th onclick=\"toggleSort('size')\" class=\"sortable\">大小")
+          .append(sortBy.equals("size") ? (" (".concat("asc".equals(order) ? "↑" : "↓").concat(")")) : "")
+          .append("</th>")
+          .append("<th onclick=\"toggleSort('date')\" class=\"sortable\">更新日期")
+          .append(sortBy.equals("date") ? (" (".concat("asc".equals(order) ? "↑" : "↓").concat(")")) : "")
+          .append("</th><th>操作</th></tr>");
+
+        // 父目录链接
+        if (!isRoot) {
+            sb.append("<tr><td><a href=\"../\">../</a></td><td>-</td><td>-</td></tr>");
+        }
+
+        // 文件列表
+        for (Object item : Sfs.page(page)) {
+            boolean isDirectory = Sfs.itemIsDirectory(item);
+            String link = Sfs.itemName(item) + (isDirectory ? "/" : "");
+            String size = isDirectory ? "-" : formatSize(Sfs.itemSize(item));
+            String time = FILE_TIME.format(LocalDateTime.ofInstant(java.time.Instant.ofEpochMilli(Sfs.itemLastModified(item)), java.time.ZoneId.systemDefault()));
+            String icon = isDirectory ? "folder.png" : "file.png";
+            sb.append("<tr><td><a href=\"").append(link).append("\">")
+              .append("<img src=\"/Resources/img/").append(icon).append("\" alt=\"\" class=\"icon\">")
+              .append(link).append("</a></td><td>").append(size)
+              .append("</td><td>").append(time).append("</td>")
+              .append("<td class=\"actions\">");
+            if (!isDirectory) {
+                sb.append("<a href=\"").append(link).append("\" class=\"btn btn-primary\">下载</a>");
+                String path = uriPath + link;
+                sb.append("<button class=\"btn btn-success\" onclick=\"copyLink('" + path + "')\">复制链接</button>");
+            }
+            sb.append("</td></tr>");
+        }
+        sb.append("</table>");
+
+        // 分页导航
+        int total = Sfs.selectorTotal(page);
+        int limit = Sfs.selectorLimit(page);
+        int offset = Sfs.selectorOffset(page);
+        if (total > limit || offset > 0) {
+            String base = "?sort=" + sortBy + "&order=" + order + "&limit=" + limit + "&offset=";
+            int shownEnd = (int) Math.min((long) offset + limit, total);
+            sb.append("<div class=\"pager\">");
+            if (offset > 0) {
+                sb.append("<a class=\"btn\" href=\"").append(base).append(String.valueOf(Math.max(0, offset - limit)))
+                  .append("\">上一页</a>");
+            }
+            sb.append("第 ").append(String.valueOf(Math.min(offset + 1, total))).append(" - ")
+              .append(String.valueOf(shownEnd)).append(" 项，共 ").append(String.valueOf(total)).append(" 项");
+            if (shownEnd < total) {
+                sb.append("<a class=\"btn\" href=\"").append(base).append(String.valueOf(shownEnd)).append("\">下一页</a>");
+            }
+            sb.append("</div>");
+        }
+        sb.append("</div></body></html>");
+    }
+
+    private String formatSize(long bytes) {
+        if (bytes < 1024) return bytes + " B";
+        int exp = (int) (Math.log(bytes) / Math.log(1024));
+        String pre = "KMGTPE".charAt(exp - 1) + "";
+        return SIZE_FMT.format(bytes / Math.pow(1024, exp)) + " " + pre + "B";
+    }
+}
@@ -0,0 +1,112 @@
+package sfs.bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 目录列表各阶段：扫描（每条目一次 stat）、全量排序与 top-k 选页的对比、页面渲染。
+ * 渲染同时测量预编码渲染器与重构前的 Writer 拼接实现（legacy*），分配量可加 -prof gc 查看（gc.alloc.rate.norm）。
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ListingBenchmark {
+    private static final int PAGE_SIZE = 1000;
+
+    @Param({"1000", "100000"})
+    int entries;
+
+    @Param({"name", "size"})
+    String sort;
+
+    private Path tmp;
+    private Path dir;
+    private List<Object> items;
+    private Comparator<Object> comparator;
+    private Object renderer;
+    private LegacyListingRenderer legacyRenderer;
+    private Object firstPage;
+    private Object allRows;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        tmp = Files.createTempDirectory("sfs-bench-listing");
+        dir = Fixtures.directory(tmp, "dir", entries);
+        items = Sfs.scan(dir);
+        comparator = Sfs.comparator(sort, "asc");
+        renderer = Sfs.newRenderer("bench", "/Resources/img/background_0.png");
+        legacyRenderer = new LegacyListingRenderer("bench", "/Resources/img/background_0.png");
+        firstPage = select(PAGE_SIZE);
+        allRows = select(entries);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Fixtures.delete(tmp);
+    }
+
+    private Object select(int limit) throws IOException {
+        Object selector = Sfs.newSelector(comparator, 0, limit);
+        for (Object item : items) Sfs.offer(selector, item);
+        return selector;
+    }
+
+    @Benchmark
+    public List<Object> scan() throws IOException {
+        return Sfs.scan(dir);
+    }
+
+    @Benchmark
+    public List<Object> fullSortFirstPage() {
+        List<Object> copy = new ArrayList<>(items);
+        copy.sort(comparator);
+        return copy.subList(0, Math.min(PAGE_SIZE, copy.size()));
+    }
+
+    @Benchmark
+    public List<?> topKFirstPage() throws IOException {
+        return Sfs.page(select(PAGE_SIZE));
+    }
+
+    @Benchmark
+    public void renderFirstPage() throws IOException {
+        Sfs.render(renderer, OutputStream.nullOutputStream(), false, "/bench/dir/", firstPage, sort, "asc");
+    }
+
+    @Benchmark
+    public void renderAllRows() throws IOException {
+        Sfs.render(renderer, OutputStream.nullOutputStream(), false, "/bench/dir/", allRows, sort, "asc");
+    }
+
+    @Benchmark
+    public void legacyRenderFirstPage() throws IOException {
+        legacyRender(firstPage);
+    }
+
+    @Benchmark
+    public void legacyRenderAllRows() throws IOException {
+        legacyRender(allRows);
+    }
+
+    /** 与重构前的分块发送路径相同：16 KB 缓冲的 UTF-8 Writer */
+    private void legacyRender(Object selector) throws IOException {
+        try (Writer w = new BufferedWriter(new OutputStreamWriter(OutputStream.nullOutputStream(), StandardCharsets.UTF_8), 16 * 1024)) {
+            legacyRenderer.render(w, false, "/bench/dir/", selector, sort, "asc");
+        }
+    }
+}
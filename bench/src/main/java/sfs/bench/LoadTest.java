@@ -0,0 +1,202 @@
+package sfs.bench;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * 进程内压测：在临时目录夹具上启动服务器，用 java.net.http.HttpClient 并发请求，输出吞吐量与延迟分位数。
+ * --engine both 时在同一夹具上依次压测 jdk 与 nio 引擎，便于对比。
+ *
+ * <pre>
+ * java -cp bench/target/benchmarks.jar sfs.bench.LoadTest [--scenario mixed|small|large|listing]
+ *      [--engine jdk|nio|both] [--clients 32] [--seconds 10] [--warmup 3] [--entries 10000]
+ * </pre>
+ */
+public class LoadTest {
+    private static final int SMALL_FILES = 100;
+    private static final int SMALL_SIZE = 4 * 1024;
+    private static final long LARGE_SIZE = 64L * 1024 * 1024;
+
+    public static void main(String[] args) throws Exception {
+        String scenario = option(args, "--scenario", "mixed");
+        String engines = option(args, "--engine", "jdk");
+        int clients = Integer.parseInt(option(args, "--clients", "32"));
+        int seconds = Integer.parseInt(option(args, "--seconds", "10"));
+        int warmup = Integer.parseInt(option(args, "--warmup", "3"));
+        int entries = Integer.parseInt(option(args, "--entries", "10000"));
+
+        Path tmp = Files.createTempDirectory("sfs-load");
+        try {
+            /* 1. 准备夹具 */
+            Path root = Files.createDirectories(tmp.resolve("public"));
+            Path small = Files.createDirectories(root.resolve("small"));
+            for (int i = 0; i < SMALL_FILES; i++) Fixtures.file(small, "f" + i + ".bin", SMALL_SIZE);
+            Fixtures.file(root, "large.bin", LARGE_SIZE);
+            Fixtures.directory(root, "listing", entries);
+
+            for (String engine : engines.equals("both") ? List.of("jdk", "nio") : List.of(engines)) {
+                load(tmp, root, engine, scenario, clients, seconds, warmup);
+            }
+        } finally {
+            Fixtures.delete(tmp);
+        }
+        System.exit(0);
+    }
+
+    private static void load(Path tmp, Path root, String engine, String scenario, int clients, int seconds, int warmup)
+            throws Exception {
+        Path cfgPath = tmp.resolve("config.yml");
+        // 关闭后台校验和计算：读取夹具文件会与被测请求争抢磁盘和 CPU；数据库也放在临时目录，不写入当前目录
+        Files.write(cfgPath, ("port: 0\nserve: " + root + "\nsiteName: load\nengine: " + engine + "\n"
+                + "accessLog: " + tmp.resolve("access-" + engine + ".log") + "\n"
+                + "checksums: false\nchecksumDb: " + tmp.resolve("checksums") + "\n").getBytes(StandardCharsets.UTF_8));
+        Object cfg = Sfs.loadConfig(cfgPath);
+
+        /* 2. 启动服务器（与 main 相同的处理器、线程池和引擎） */
+        ExecutorService executor = Sfs.createExecutor(cfg);
+        Object server = Sfs.createEngine(cfg, new InetSocketAddress(InetAddress.getLoopbackAddress(), 0),
+                Sfs.newHandler(root, cfg), executor);
+        Sfs.startEngine(server);
+        try {
+            String base = "http://127.0.0.1:" + Sfs.enginePort(server);
+            List<URI> targets = targets(base, scenario);
+
+            /* 3. 预热后正式压测 */
+            HttpClient client = HttpClient.newBuilder()
+                    .version(HttpClient.Version.HTTP_1_1)
+                    .connectTimeout(Duration.ofSeconds(5))
+                    .build();
+            if (warmup > 0) run(client, targets, clients, warmup);
+            Result r = run(client, targets, clients, seconds);
+
+            System.out.printf("engine=%s scenario=%s clients=%d duration=%ds%n", engine, scenario, clients, seconds);
+            System.out.printf("requests=%d errors=%d  %.1f req/s  %.1f MB/s%n",
+                    r.count, r.errors, r.count / r.seconds, r.bytes / r.seconds / (1024 * 1024));
+            System.out.printf("latency ms: p50=%.3f p90=%.3f p99=%.3f p999=%.3f max=%.3f%n",
+                    r.percentile(0.5), r.percentile(0.9), r.percentile(0.99), r.percentile(0.999), r.percentile(1.0));
+        } finally {
+            Sfs.stopEngine(server);
+            executor.shutdownNow();
+        }
+    }
+
+    private static List<URI> targets(String base, String scenario) {
+        List<URI> small = new ArrayList<>();
+        for (int i = 0; i < SMALL_FILES; i++) small.add(URI.create(base + "/small/f" + i + ".bin"));
+        URI large = URI.create(base + "/large.bin");
+        URI listing = URI.create(base + "/listing/");
+        switch (scenario) {
+            case "small":
+                return small;
+            case "large":
+                return List.of(large);
+            case "listing":
+                return List.of(listing, URI.create(base + "/listing/?sort=size&order=desc"),
+                        URI.create(base + "/listing/?sort=date&offset=1000"));
+            default:
+                // 混合：以小文件为主，夹杂目录列表与偶尔的大文件
+                List<URI> mixed = new ArrayList<>(small);
+                for (int i = 0; i < 20; i++) mixed.add(listing);
+                mixed.add(large);
+                return mixed;
+        }
+    }
+
+    private static Result run(HttpClient client, List<URI> targets, int clients, int seconds) throws InterruptedException {
+        long deadline = System.nanoTime() + seconds * 1_000_000_000L;
+        long[][] latencies = new long[clients][];
+        int[] counts = new int[clients];
+        long[] bytes = new long[clients];
+        int[] errors = new int[clients];
+        CountDownLatch done = new CountDownLatch(clients);
+        long start = System.nanoTime();
+        for (int c = 0; c < clients; c++) {
+            final int id = c;
+            Thread t = new Thread(() -> {
+                long[] lat = new long[1024];
+                int n = 0;
+                byte[] buf = new byte[64 * 1024];
+                ThreadLocalRandom rnd = ThreadLocalRandom.current();
+                while (System.nanoTime() < deadline) {
+                    URI uri = targets.get(rnd.nextInt(targets.size()));
+                    long t0 = System.nanoTime();
+                    try {
+                        HttpResponse<InputStream> resp = client.send(HttpRequest.newBuilder(uri).build(),
+                                HttpResponse.BodyHandlers.ofInputStream());
+                        try (InputStream in = resp.body()) {
+                            for (int k; (k = in.read(buf)) > 0; ) bytes[id] += k;
+                        }
+                        if (resp.statusCode() >= 400) errors[id]++;
+                    } catch (IOException | InterruptedException e) {
+                        errors[id]++;
+                    }
+                    if (n == lat.length) lat = Arrays.copyOf(lat, n * 2);
+                    lat[n++] = System.nanoTime() - t0;
+                }
+                latencies[id] = Arrays.copyOf(lat, n);
+                counts[id] = n;
+                done.countDown();
+            }, "load-client-" + c);
+            t.setDaemon(true);
+            t.start();
+        }
+        done.await();
+        double elapsed = (System.nanoTime() - start) / 1e9;
+
+        Result r = new Result();
+        int total = 0;
+        for (int c = 0; c < clients; c++) {
+            total += counts[c];
+            r.bytes += bytes[c];
+            r.errors += errors[c];
+        }
+        r.latencies = new long[total];
+        int pos = 0;
+        for (long[] lat : latencies) {
+            System.arraycopy(lat, 0, r.latencies, pos, lat.length);
+            pos += lat.length;
+        }
+        Arrays.sort(r.latencies);
+        r.count = total;
+        r.seconds = elapsed;
+        return r;
+    }
+
+    private static String option(String[] args, String name, String def) {
+        for (int i = 0; i + 1 < args.length; i++) {
+            if (args[i].equals(name)) return args[i + 1];
+        }
+        return def;
+    }
+
+    private static class Result {
+        long[] latencies;
+        int count;
+        int errors;
+        long bytes;
+        double seconds;
+
+        /** 延迟分位数（毫秒） */
+        double percentile(double q) {
+            if (latencies.length == 0) return 0;
+            int idx = (int) Math.min(latencies.length - 1, Math.max(0, Math.ceil(q * latencies.length) - 1));
+            return latencies[idx] / 1e6;
+        }
+    }
+}
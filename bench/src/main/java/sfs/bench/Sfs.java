@@ -0,0 +1,366 @@
+package sfs.bench;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.net.InetSocketAddress;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+
+import static java.lang.invoke.MethodType.methodType;
+
+/**
+ * SimpleFileServer 位于默认包，具名包中的代码无法直接引用，这里通过 MethodHandle 访问基准测试需要的内部方法。
+ * 句柄保存在 static final 字段中，JIT 会把它们当作常量内联，调用开销可以忽略。
+ */
+final class Sfs {
+    static final Class<?> CONFIG = cls("SimpleFileServer$Config");
+    static final Class<?> HANDLER = cls("SimpleFileServer$LoggingFileHandler");
+    static final Class<?> FILE_ITEM = cls("SimpleFileServer$LoggingFileHandler$FileItem");
+    static final Class<?> PAGE_SELECTOR = cls("SimpleFileServer$LoggingFileHandler$PageSelector");
+    static final Class<?> RENDERER = cls("SimpleFileServer$ListingRenderer");
+    static final Class<?> BYTE_SINK = cls("SimpleFileServer$ListingRenderer$ByteSink");
+    static final Class<?> WORKER_POOL = cls("SimpleFileServer$WorkerPool");
+    static final Class<?> REQUEST_HANDLER = cls("SimpleFileServer$RequestHandler");
+    static final Class<?> ENGINE = cls("SimpleFileServer$Engine");
+
+    private static final MethodHandle LOAD_CONFIG =
+            find(CONFIG, "load", methodType(CONFIG, Path.class), true, methodType(Object.class, Path.class));
+    private static final MethodHandle NEW_HANDLER =
+            ctor(HANDLER, methodType(void.class, Path.class, CONFIG), methodType(Object.class, Path.class, Object.class));
+    private static final MethodHandle CREATE_EXECUTOR =
+            find(WORKER_POOL, "create", methodType(ExecutorService.class, CONFIG), true,
+                    methodType(ExecutorService.class, Object.class));
+    private static final MethodHandle CREATE_ENGINE =
+            find(ENGINE, "create", methodType(ENGINE, CONFIG, InetSocketAddress.class, REQUEST_HANDLER, Executor.class), true,
+                    methodType(Object.class, Object.class, InetSocketAddress.class, Object.class, Executor.class));
+    private static final MethodHandle ENGINE_START =
+            find(ENGINE, "start", methodType(void.class), false, methodType(void.class, Object.class));
+    private static final MethodHandle ENGINE_PORT =
+            find(ENGINE, "port", methodType(int.class), false, methodType(int.class, Object.class));
+    private static final MethodHandle ENGINE_STOP =
+            find(ENGINE, "stop", methodType(void.class), false, methodType(void.class, Object.class));
+    private static final MethodHandle READ_ITEM =
+            find(HANDLER, "readItem", methodType(FILE_ITEM, Path.class), true, methodType(Object.class, Path.class));
+    private static final MethodHandle COMPARATOR =
+            find(HANDLER, "comparator", methodType(Comparator.class, String.class, String.class), true,
+                    methodType(Comparator.class, String.class, String.class));
+    private static final MethodHandle NEW_SELECTOR =
+            ctor(PAGE_SELECTOR, methodType(void.class, Comparator.class, int.class, int.class),
+                    methodType(Object.class, Comparator.class, int.class, int.class));
+    private static final MethodHandle OFFER =
+            find(PAGE_SELECTOR, "offer", methodType(void.class, FILE_ITEM), false,
+                    methodType(void.class, Object.class, Object.class));
+    private static final MethodHandle PAGE =
+            find(PAGE_SELECTOR, "page", methodType(List.class), false, methodType(List.class, Object.class));
+    private static final MethodHandle ITEM_NAME = getter(FILE_ITEM, "name", String.class, Object.class);
+    private static final MethodHandle ITEM_IS_DIRECTORY = getter(FILE_ITEM, "isDirectory", boolean.class, boolean.class);
+    private static final MethodHandle ITEM_SIZE = getter(FILE_ITEM, "size", long.class, long.class);
+    private static final MethodHandle ITEM_LAST_MODIFIED = getter(FILE_ITEM, "lastModified", long.class, long.class);
+    private static final MethodHandle SELECTOR_OFFSET = getter(PAGE_SELECTOR, "offset", int.class, int.class);
+    private static final MethodHandle SELECTOR_LIMIT = getter(PAGE_SELECTOR, "limit", int.class, int.class);
+    private static final MethodHandle SELECTOR_TOTAL = getter(PAGE_SELECTOR, "total", int.class, int.class);
+    private static final MethodHandle NEW_RENDERER =
+            ctor(RENDERER, methodType(void.class, String.class, String.class, String.class, boolean.class),
+                    methodType(Object.class, String.class, String.class, String.class, boolean.class));
+    private static final MethodHandle RENDER =
+            find(RENDERER, "render", methodType(void.class, OutputStream.class, boolean.class, String.class,
+                            PAGE_SELECTOR, String.class, String.class), false,
+                    methodType(void.class, Object.class, OutputStream.class, boolean.class, String.class,
+                            Object.class, String.class, String.class));
+    private static final MethodHandle NEW_SINK =
+            ctor(BYTE_SINK, methodType(void.class), methodType(Object.class));
+    private static final MethodHandle SINK_BEGIN =
+            find(BYTE_SINK, "begin", methodType(void.class, OutputStream.class), false,
+                    methodType(void.class, Object.class, OutputStream.class));
+    private static final MethodHandle SINK_END =
+            find(BYTE_SINK, "end", methodType(void.class), false, methodType(void.class, Object.class));
+    private static final MethodHandle WRITE_SIZE =
+            find(RENDERER, "writeSize", methodType(void.class, BYTE_SINK, long.class), true,
+                    methodType(void.class, Object.class, long.class));
+    private static final MethodHandle TRANSFER =
+            find(HANDLER, "transfer", methodType(void.class, FileChannel.class, long.class, long.class, OutputStream.class),
+                    true, methodType(void.class, FileChannel.class, long.class, long.class, OutputStream.class));
+
+    private Sfs() {
+    }
+
+    /* ---------- 配置与服务器 ---------- */
+    static Object loadConfig(Path p) throws IOException {
+        try {
+            return (Object) LOAD_CONFIG.invokeExact(p);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static Object newHandler(Path root, Object cfg) throws IOException {
+        try {
+            return (Object) NEW_HANDLER.invokeExact(root, cfg);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static ExecutorService createExecutor(Object cfg) throws IOException {
+        try {
+            return (ExecutorService) CREATE_EXECUTOR.invokeExact(cfg);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static Object createEngine(Object cfg, InetSocketAddress address, Object handler, Executor executor) throws IOException {
+        try {
+            return (Object) CREATE_ENGINE.invokeExact(cfg, address, handler, executor);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static void startEngine(Object engine) throws IOException {
+        try {
+            ENGINE_START.invokeExact(engine);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static int enginePort(Object engine) throws IOException {
+        try {
+            return (int) ENGINE_PORT.invokeExact(engine);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static void stopEngine(Object engine) throws IOException {
+        try {
+            ENGINE_STOP.invokeExact(engine);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    /* ---------- 目录扫描与排序 ---------- */
+    static List<Object> scan(Path dir) throws IOException {
+        List<Object> items = new ArrayList<>();
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir)) {
+            for (Path p : ds) {
+                Object item = readItem(p);
+                if (item != null) items.add(item);
+            }
+        }
+        return items;
+    }
+
+    static Object readItem(Path p) throws IOException {
+        try {
+            return (Object) READ_ITEM.invokeExact(p);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    static Comparator<Object> comparator(String sortBy, String order) throws IOException {
+        try {
+            return (Comparator<Object>) COMPARATOR.invokeExact(sortBy, order);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static Object newSelector(Comparator<Object> comparator, int offset, int limit) throws IOException {
+        try {
+            return (Object) NEW_SELECTOR.invokeExact((Comparator) comparator, offset, limit);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static void offer(Object selector, Object item) throws IOException {
+        try {
+            OFFER.invokeExact(selector, item);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static List<?> page(Object selector) throws IOException {
+        try {
+            return (List<?>) PAGE.invokeExact(selector);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static String itemName(Object item) throws IOException {
+        try {
+            return (String) (Object) ITEM_NAME.invokeExact(item);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static boolean itemIsDirectory(Object item) throws IOException {
+        try {
+            return (boolean) ITEM_IS_DIRECTORY.invokeExact(item);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static long itemSize(Object item) throws IOException {
+        try {
+            return (long) ITEM_SIZE.invokeExact(item);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static long itemLastModified(Object item) throws IOException {
+        try {
+            return (long) ITEM_LAST_MODIFIED.invokeExact(item);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static int selectorOffset(Object selector) throws IOException {
+        try {
+            return (int) SELECTOR_OFFSET.invokeExact(selector);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static int selectorLimit(Object selector) throws IOException {
+        try {
+            return (int) SELECTOR_LIMIT.invokeExact(selector);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static int selectorTotal(Object selector) throws IOException {
+        try {
+            return (int) SELECTOR_TOTAL.invokeExact(selector);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    /* ---------- 页面渲染 ---------- */
+    static Object newRenderer(String siteName, String backgroundImage) throws IOException {
+        try {
+            return (Object) NEW_RENDERER.invokeExact(siteName, backgroundImage, "/search", true);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static void render(Object renderer, OutputStream out, boolean isRoot, String uriPath, Object selector,
+                       String sortBy, String order) throws IOException {
+        try {
+            RENDER.invokeExact(renderer, out, isRoot, uriPath, selector, sortBy, order);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static Object newSink() throws IOException {
+        try {
+            return (Object) NEW_SINK.invokeExact();
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static void sinkBegin(Object sink, OutputStream out) throws IOException {
+        try {
+            SINK_BEGIN.invokeExact(sink, out);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static void sinkEnd(Object sink) throws IOException {
+        try {
+            SINK_END.invokeExact(sink);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static void writeSize(Object sink, long bytes) throws IOException {
+        try {
+            WRITE_SIZE.invokeExact(sink, bytes);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    /* ---------- 文件传输 ---------- */
+    static void transfer(FileChannel ch, long position, long count, OutputStream os) throws IOException {
+        try {
+            TRANSFER.invokeExact(ch, position, count, os);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    /* ---------- 工具 ---------- */
+    private static Class<?> cls(String name) {
+        try {
+            return Class.forName(name);
+        } catch (ClassNotFoundException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private static MethodHandle find(Class<?> owner, String name, MethodType type, boolean isStatic, MethodType erased) {
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.privateLookupIn(owner, MethodHandles.lookup());
+            MethodHandle mh = isStatic ? lookup.findStatic(owner, name, type) : lookup.findVirtual(owner, name, type);
+            return mh.asType(erased);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    /** 字段读取句柄，引用类型统一擦除为 Object */
+    private static MethodHandle getter(Class<?> owner, String name, Class<?> type, Class<?> erased) {
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.privateLookupIn(owner, MethodHandles.lookup());
+            return lookup.findGetter(owner, name, type).asType(methodType(erased, Object.class));
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private static MethodHandle ctor(Class<?> owner, MethodType type, MethodType erased) {
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.privateLookupIn(owner, MethodHandles.lookup());
+            return lookup.findConstructor(owner, type).asType(erased);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private static IOException rethrow(Throwable t) {
+        if (t instanceof IOException) return (IOException) t;
+        if (t instanceof RuntimeException) throw (RuntimeException) t;
+        if (t instanceof Error) throw (Error) t;
+        return new IOException(t);
+    }
+}
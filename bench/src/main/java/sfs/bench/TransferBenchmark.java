@@ -0,0 +1,49 @@
+package sfs.bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+
+/** 文件体发送：FileChannel.transferTo 路径与原 Files.copy 的对比（小文件 4 KB / 大文件 64 MB） */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TransferBenchmark {
+    @Param({"4096", "67108864"})
+    long size;
+
+    private Path tmp;
+    private Path file;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        tmp = Files.createTempDirectory("sfs-bench-transfer");
+        file = Fixtures.file(tmp, "data.bin", size);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Fixtures.delete(tmp);
+    }
+
+    @Benchmark
+    public void transferTo() throws IOException {
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+            Sfs.transfer(ch, 0, size, OutputStream.nullOutputStream());
+        }
+    }
+
+    @Benchmark
+    public long filesCopy() throws IOException {
+        return Files.copy(file, OutputStream.nullOutputStream());
+    }
+}